@@ -10,10 +10,9 @@
 package client;
 
 import java.awt.BorderLayout;
-import java.awt.Component;
-import java.awt.Container;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -24,9 +23,12 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.TitledBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 import common.JSONConsts;
@@ -41,6 +43,8 @@ public class ClientUI extends JFrame {
 	private static final String HELP_BUTTON = "Help";
 	private static final String SETTINGS_BUTTON = "Settings";
 	private static final String UNKNOWN = "<unkown>";
+	// delay after the last keystroke before a word is looked up
+	private static final int LOOKUP_DELAY = 300;
 
 	private final DictionaryClient client;
 
@@ -51,6 +55,10 @@ public class ClientUI extends JFrame {
 	private final JPanel settings;
 	private final JTextField ip;
 	private final JTextField port;
+	private final Timer lookup;
+
+	// requests in flight, across all threads
+	private final AtomicInteger waiting = new AtomicInteger();
 
 	public ClientUI(DictionaryClient client) {
 		super(TITLE);
@@ -104,7 +112,39 @@ public class ClientUI extends JFrame {
 		settings.add(new JLabel("Port"));
 		settings.add(port = new JTextField(15));
 
-		setWaiting(false);
+		lookup = new Timer(LOOKUP_DELAY, e -> lookupWord());
+		lookup.setRepeats(false);
+		word.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent de) {
+				lookup.restart();
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent de) {
+				lookup.restart();
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent de) {
+				/* attribute changes do not change the word */
+			}
+		});
+
+		setTitle(TITLE);
+	}
+
+	/*
+	 * Looks up the word being typed, once typing has paused
+	 */
+	private void lookupWord() {
+		String text = word.getText();
+		if (text.isEmpty()) {
+			client.cancelQuery();
+			def.setText("");
+		} else {
+			client.lookup(text);
+		}
 	}
 
 	/*
@@ -126,6 +166,7 @@ public class ClientUI extends JFrame {
 	private void handleEvent(ActionEvent ae) {
 		switch (ae.getActionCommand()) {
 		case QUERY_BUTTON:
+			lookup.stop();
 			client.queryDefinitions(word.getText());
 			break;
 		case ADD_BUTTON:
@@ -162,39 +203,76 @@ public class ClientUI extends JFrame {
 	}
 
 	/*
-	 * Shows a word's definition, or a dialog if no definition is known
+	 * Clears the definitions, ready for those of word to be appended
 	 * 
-	 * @param content JSONArray used to show correct dialog/definition
+	 * @param word String whose definitions will be shown
 	 */
-	public void showDefinition(JSONArray content) {
-		StringBuilder defText = new StringBuilder();
-		defText
-			.append(String.format("Definitions for %s:\n\n", word.getText()));
-
-		if (content != null && !content.isEmpty()) {
-			content.forEach(object -> {
-				JSONObject entry = (JSONObject) object;
-				String definition = entry.optString(JSONConsts.WORD_DEFINITION);
-				String author = entry.optString(JSONConsts.WORD_AUTHOR);
-				defText.append(
-					String.format(
-						"%s\n - submitted by %s\n\n",
-						definition == null ? UNKNOWN : definition,
-						author == null || author.isEmpty() ? UNKNOWN : author));
-			});
-		} else {
+	public void startDefinitions(String word) {
+		def.setText(String.format("Definitions for %s:\n\n", word));
+	}
+
+	/*
+	 * Appends definitions formatted by formatDefinition
+	 * 
+	 * @param text String of formatted definitions
+	 */
+	public void appendDefinitions(String text) {
+		def.append(text);
+	}
+
+	/*
+	 * Finishes showing a word's definitions, showing a dialog if no definition
+	 * is known and the user asked for it
+	 * 
+	 * @param word String whose definitions were shown
+	 * 
+	 * @param total int number of definitions the word has
+	 * 
+	 * @param live boolean true if the word was looked up while typing
+	 */
+	public void finishDefinitions(String word, int total, boolean live) {
+		if (total > 0) {
+			return;
+		}
+
+		def.append(UNKNOWN);
+		if (!live) {
 			JOptionPane.showMessageDialog(
 				this,
 				String.format(
 					"Couldn't find a definition for \"%s\".\nPlease check the spelling and try again.",
-					word.getText()),
+					word),
 				"Warning",
 				JOptionPane.WARNING_MESSAGE);
-
-			defText.append(UNKNOWN);
 		}
+	}
 
-		def.setText(defText.toString());
+	/*
+	 * Shows why a word looked up while typing couldn't be found, in place of
+	 * its definitions
+	 * 
+	 * @param word String that was looked up
+	 * 
+	 * @param message String describing the error
+	 */
+	public void showLookupError(String word, String message) {
+		def.setText(
+			String.format("Couldn't look up %s.\n\n%s", word, message));
+	}
+
+	/*
+	 * Formats a definition for display. Safe to call from any thread.
+	 * 
+	 * @param entry JSONObject of the definition and its author
+	 */
+	public static String formatDefinition(JSONObject entry) {
+		String definition = entry.optString(JSONConsts.WORD_DEFINITION);
+		String author = entry.optString(JSONConsts.WORD_AUTHOR);
+
+		return String.format(
+			"%s\n - submitted by %s\n\n",
+			definition == null ? UNKNOWN : definition,
+			author == null || author.isEmpty() ? UNKNOWN : author);
 	}
 
 	/*
@@ -263,7 +341,8 @@ public class ClientUI extends JFrame {
 			this,
 			"Welcome to the Distributed Dictionary!\n\n"
 				+ "To get the definitions of a word, enter the word in the"
-				+ " Word box and press \"" + QUERY_BUTTON + "\".\n"
+				+ " Word box; definitions are looked up as you type, or press \""
+				+ QUERY_BUTTON + "\".\n"
 				+ "To update/add/delete a word in the dictionary, enter the word"
 				+ " and the new information and press the appropriate button.\n\n"
 				+ "The server can only handle so many active clients at a time,"
@@ -274,24 +353,24 @@ public class ClientUI extends JFrame {
 	}
 
 	/*
-	 * Shows the user that the server is waiting or not
+	 * Shows the user whether any request is waiting on the server. The
+	 * window stays usable while requests are in flight. Safe to call from
+	 * any thread.
 	 * 
-	 * @param show true if waiting on the server
+	 * @param waiting true when a request starts, false when it finishes
 	 */
 	public void setWaiting(boolean waiting) {
-		setTitle(TITLE + (waiting ? " - Waiting for Server..." : ""));
-		recursivelySetEnabled(getContentPane(), !waiting);
-	}
-
-	private void recursivelySetEnabled(Container container, boolean enabled) {
-		container.setEnabled(enabled);
-
-		for (Component component : container.getComponents()) {
-			if (component instanceof Container) {
-				recursivelySetEnabled((Container) component, enabled);
-			}
-			component.setEnabled(enabled);
+		if (waiting) {
+			this.waiting.incrementAndGet();
+		} else {
+			this.waiting.decrementAndGet();
 		}
+
+		// the count is read when the title is set, so updates can't reorder
+		SwingUtilities.invokeLater(
+			() -> setTitle(
+				TITLE + (this.waiting.get() > 0 ? " - Waiting for Server..."
+					: "")));
 	}
 
 	/*
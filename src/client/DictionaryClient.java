@@ -9,18 +9,25 @@
 
 package client;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import common.JSONConsts;
 
 public class DictionaryClient {
 	public static final int DEFAULT_PORT = 9015;
+	// milliseconds between syncs of the local replica, 0 disables it
+	private static final String REPLICA_PROPERTY = "dictionary.replica.interval";
 
 	private ClientUI ui = null;
 
 	private String ip;
 	private int port;
 
+	private QueryWorker query = null;
+	private LocalReplica replica = null;
+	private final long replicaInterval;
+
 	public static void main(String args[]) {
 		if (args.length != 2) {
 			System.err.println("usage: <server-address> <port>");
@@ -52,6 +59,8 @@ public class DictionaryClient {
 	public DictionaryClient(String ip, int port) {
 		this.ip = ip;
 		this.port = port;
+		this.replicaInterval = Long.getLong(REPLICA_PROPERTY, 0);
+		startReplica();
 
 		this.ui = new ClientUI(this);
 		ui.setVisible(true);
@@ -69,15 +78,86 @@ public class DictionaryClient {
 	}
 
 	/*
-	 * Queries the server for definitions of word
+	 * Queries the server for definitions of word, showing a dialog if it has
+	 * none
 	 * 
 	 * @param word String to query the definitions of
 	 */
 	public void queryDefinitions(String word) {
-		JSONObject out = new JSONObject()
-			.put(JSONConsts.COMMAND, JSONConsts.COMMAND_QUERY)
-			.put(JSONConsts.WORD, word);
-		sendRequest(out.toString());
+		startQuery(word, false);
+	}
+
+	/*
+	 * Looks up the definitions of word as it is typed, without dialogs
+	 * 
+	 * @param word String to look up the definitions of
+	 */
+	public void lookup(String word) {
+		startQuery(word, true);
+	}
+
+	/*
+	 * Cancels the query in progress, if any
+	 */
+	public synchronized void cancelQuery() {
+		if (query != null) {
+			query.abort();
+			query = null;
+		}
+	}
+
+	/*
+	 * Starts a QueryWorker for word, aborting the one in progress, so that
+	 * only the latest query is ever shown. Must be called on the event
+	 * dispatch thread.
+	 * 
+	 * @param word String to query the definitions of
+	 * 
+	 * @param live boolean true if the query was made while typing
+	 */
+	private synchronized void startQuery(String word, boolean live) {
+		cancelQuery();
+
+		ui.startDefinitions(word);
+		if (replica != null && replica.isReady()) {
+			JSONArray definitions = replica.getDefinitions(word);
+			StringBuilder text = new StringBuilder();
+			for (Object definition : definitions) {
+				text.append(ClientUI.formatDefinition((JSONObject) definition));
+			}
+			ui.appendDefinitions(text.toString());
+			ui.finishDefinitions(word, definitions.length(), live);
+			return;
+		}
+
+		query = new QueryWorker(ui, ip, port, word, live);
+		query.execute();
+	}
+
+	/*
+	 * Starts keeping a local replica of the current server's dictionary, if
+	 * enabled, replacing any replica of a previous server
+	 */
+	private synchronized void startReplica() {
+		if (replica != null) {
+			replica.stop();
+			replica = null;
+		}
+
+		if (replicaInterval > 0) {
+			replica = new LocalReplica(ip, port);
+			replica.start(replicaInterval);
+		}
+	}
+
+	/*
+	 * Syncs the local replica, if any, so that it reflects a change just made
+	 * by this client
+	 */
+	public synchronized void syncReplica() {
+		if (replica != null) {
+			replica.requestSync();
+		}
 	}
 
 	/*
@@ -141,6 +221,7 @@ public class DictionaryClient {
 	public synchronized void setSettings(String ip, int port) {
 		this.ip = ip;
 		this.port = port;
+		startReplica();
 	}
 
 	/*
@@ -0,0 +1,268 @@
+/*
+ * LocalReplica.java
+ *
+ * A copy of the server's dictionary held by the client, so that queries are
+ * answered locally without a round trip. The replica is loaded once with a
+ * dump, then kept up to date in the background by pulling only the changes
+ * made since the version it last saw, so syncing costs bandwidth in
+ * proportion to the rate of change rather than the size of the dictionary.
+ *
+ * @author James Barnes (820946)
+ */
+
+package client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import common.JSONConsts;
+
+public class LocalReplica {
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int READ_TIMEOUT = 30000;
+
+	private final String ip;
+	private final int port;
+	private final ScheduledExecutorService syncer;
+
+	// guarded by this
+	private Map<String, JSONArray> words = new HashMap<String, JSONArray>();
+	private long epoch = 0;
+	private long version = 0;
+	private boolean ready = false;
+
+	/*
+	 * Creates a new, empty LocalReplica of a server's dictionary
+	 *
+	 * @param ip String IP address of the server
+	 *
+	 * @param port int port of the server
+	 */
+	public LocalReplica(String ip, int port) {
+		this.ip = ip;
+		this.port = port;
+		this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "replica-sync");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/*
+	 * Loads the replica in the background, then syncs it every interval
+	 *
+	 * @param intervalMillis long milliseconds between syncs
+	 */
+	public void start(long intervalMillis) {
+		syncer.scheduleWithFixedDelay(
+			this::syncQuietly,
+			0,
+			intervalMillis,
+			TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Syncs the replica in the background as soon as possible, such as after
+	 * the client has changed the dictionary
+	 */
+	public void requestSync() {
+		syncer.execute(this::syncQuietly);
+	}
+
+	/*
+	 * Stops syncing the replica
+	 */
+	public void stop() {
+		syncer.shutdownNow();
+	}
+
+	/*
+	 * Returns true once the replica has been loaded and can answer queries
+	 */
+	public synchronized boolean isReady() {
+		return ready;
+	}
+
+	/*
+	 * Gets a copy of the definitions of word, or an empty JSONArray if it
+	 * has none
+	 *
+	 * @param word String to get the definitions of
+	 */
+	public synchronized JSONArray getDefinitions(String word) {
+		JSONArray definitions = words.get(word);
+		JSONArray copy = new JSONArray();
+		if (definitions != null) {
+			for (int i = 0; i < definitions.length(); i++) {
+				copy.put(definitions.get(i));
+			}
+		}
+
+		return copy;
+	}
+
+	/*
+	 * Gets the version of the server's dictionary the replica is up to date
+	 * with
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	private void syncQuietly() {
+		try {
+			sync();
+		} catch (Exception e) {
+			// queries fall back to the server until a sync succeeds
+			System.err.format(
+				"Couldn't sync the local replica (%s).\n",
+				RequestThread.describeError(e));
+		}
+	}
+
+	/*
+	 * Brings the replica up to date with the server, loading it with a dump
+	 * if it has not been loaded or the server can no longer send the changes
+	 * it is missing
+	 */
+	private void sync() throws IOException {
+		if (!isReady()) {
+			load();
+		}
+
+		while (true) {
+			long from;
+			long fromEpoch;
+			synchronized (this) {
+				from = version;
+				fromEpoch = epoch;
+			}
+
+			JSONObject response = request(
+				new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_SYNC)
+					.put(JSONConsts.EPOCH, fromEpoch)
+					.put(JSONConsts.VERSION, from)
+					.put(JSONConsts.COMPRESS, JSONConsts.DEFLATE));
+			Object content = response.opt(JSONConsts.CONTENT);
+			if (JSONConsts.SYNC_RESET.equals(content)) {
+				load();
+				continue;
+			}
+
+			JSONObject changes = (JSONObject) content;
+			if (apply(changes) >= changes.getLong(JSONConsts.LATEST)) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Applies a batch of changes from the server, returning the version the
+	 * replica is now up to date with
+	 *
+	 * @param content JSONObject content of a sync response
+	 */
+	private synchronized long apply(JSONObject content) {
+		for (Object object : content.getJSONArray(JSONConsts.CHANGES)) {
+			JSONObject change = (JSONObject) object;
+			String word = change.getString(JSONConsts.WORD);
+			if (JSONConsts.COMMAND_DELETE
+				.equals(change.getString(JSONConsts.COMMAND))) {
+				words.remove(word);
+			} else {
+				words.computeIfAbsent(word, w -> new JSONArray())
+					.put(change.getJSONObject(JSONConsts.CONTENT));
+			}
+		}
+		version = content.getLong(JSONConsts.VERSION);
+
+		return version;
+	}
+
+	/*
+	 * Replaces the replica with a dump of the server's dictionary
+	 */
+	private void load() throws IOException {
+		try (Socket socket = connect()) {
+			DataOutputStream dos = new DataOutputStream(
+				socket.getOutputStream());
+			DataInputStream dis = new DataInputStream(socket.getInputStream());
+
+			dos.writeUTF(
+				new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_DUMP)
+					.toString());
+			JSONObject header = checkResponse(RequestThread.readResponse(dis))
+				.getJSONObject(JSONConsts.CONTENT);
+
+			JSONObject dump = new JSONObject(
+				new JSONTokener(
+					new InputStreamReader(dis, StandardCharsets.UTF_8)));
+			Map<String, JSONArray> loaded = new HashMap<String, JSONArray>();
+			for (String word : dump.keySet()) {
+				loaded.put(word, dump.getJSONArray(word));
+			}
+
+			synchronized (this) {
+				words = loaded;
+				epoch = header.getLong(JSONConsts.EPOCH);
+				version = header.getLong(JSONConsts.VERSION);
+				ready = true;
+			}
+		}
+	}
+
+	/*
+	 * Sends a request to the server and reads its response
+	 *
+	 * @param json JSONObject request to send
+	 */
+	private JSONObject request(JSONObject json) throws IOException {
+		try (Socket socket = connect()) {
+			new DataOutputStream(socket.getOutputStream())
+				.writeUTF(json.toString());
+
+			return checkResponse(
+				RequestThread.readResponse(
+					new DataInputStream(socket.getInputStream())));
+		}
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+			socket.setSoTimeout(READ_TIMEOUT);
+		} catch (IOException ioe) {
+			socket.close();
+			throw ioe;
+		}
+
+		return socket;
+	}
+
+	private static JSONObject checkResponse(JSONObject response)
+		throws IOException {
+		if (JSONConsts.COMMAND_ERROR
+			.equals(response.optString(JSONConsts.COMMAND))) {
+			throw new IOException(response.optString(JSONConsts.CONTENT));
+		}
+
+		return response;
+	}
+}
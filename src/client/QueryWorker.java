@@ -0,0 +1,161 @@
+/*
+ * QueryWorker.java
+ *
+ * Queries the server for a word's definitions in the background, asking for
+ * them to be streamed, and renders each frame of definitions as it arrives.
+ * A QueryWorker that has been superseded is aborted, closing its connection
+ * so that it stops reading at once.
+ *
+ * @author James Barnes (820946)
+ */
+
+package client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import common.JSONConsts;
+
+public class QueryWorker extends SwingWorker<Integer, String> {
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	private final ClientUI ui;
+	private final String ip;
+	private final int port;
+	private final String word;
+	private final boolean live;
+
+	private volatile Socket socket = null;
+
+	/*
+	 * Creates a new QueryWorker
+	 *
+	 * @param ui ClientUI to render the definitions on
+	 *
+	 * @param ip String IP address used to connect to the server
+	 *
+	 * @param port int to connect to server
+	 *
+	 * @param word String to query the definitions of
+	 *
+	 * @param live boolean true if the query was made while typing, in which
+	 * case no dialogs are shown
+	 */
+	public QueryWorker(ClientUI ui, String ip, int port, String word,
+		boolean live) {
+		this.ui = ui;
+		this.ip = ip;
+		this.port = port;
+		this.word = word;
+		this.live = live;
+	}
+
+	/*
+	 * Cancels the query, closing its connection if it is open
+	 */
+	public void abort() {
+		cancel(true);
+
+		Socket current = socket;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException ioe) {
+				/* ignored */
+			}
+		}
+	}
+
+	@Override
+	protected Integer doInBackground() throws Exception {
+		ui.setWaiting(true);
+		try (Socket socket = new Socket()) {
+			this.socket = socket;
+			if (isCancelled()) {
+				return 0;
+			}
+
+			socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+			DataOutputStream dos = new DataOutputStream(
+				socket.getOutputStream());
+			DataInputStream dis = new DataInputStream(socket.getInputStream());
+
+			dos.writeUTF(
+				new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_QUERY)
+					.put(JSONConsts.WORD, word)
+					.put(JSONConsts.STREAM, true)
+					.put(JSONConsts.COMPRESS, JSONConsts.DEFLATE).toString());
+
+			JSONObject header = RequestThread.readResponse(dis);
+			if (JSONConsts.COMMAND_ERROR
+				.equals(header.optString(JSONConsts.COMMAND))) {
+				throw new IOException(header.optString(JSONConsts.CONTENT));
+			}
+
+			int count = header.getJSONObject(JSONConsts.CONTENT)
+				.getInt(JSONConsts.COUNT);
+			int received = 0;
+			while (received < count && !isCancelled()) {
+				JSONArray frame = RequestThread.readResponse(dis)
+					.getJSONArray(JSONConsts.CONTENT);
+
+				// formatted here so the event dispatch thread only appends
+				StringBuilder text = new StringBuilder();
+				for (Object definition : frame) {
+					text.append(ClientUI.formatDefinition((JSONObject) definition));
+				}
+				publish(text.toString());
+				received += frame.length();
+			}
+
+			return count;
+		} finally {
+			ui.setWaiting(false);
+		}
+	}
+
+	@Override
+	protected void process(List<String> chunks) {
+		// chunks published before the query was superseded are dropped
+		if (isCancelled()) {
+			return;
+		}
+
+		for (String chunk : chunks) {
+			ui.appendDefinitions(chunk);
+		}
+	}
+
+	@Override
+	protected void done() {
+		if (isCancelled()) {
+			return;
+		}
+
+		try {
+			ui.finishDefinitions(word, get(), live);
+		} catch (ExecutionException ee) {
+			Exception cause = ee.getCause() instanceof Exception
+				? (Exception) ee.getCause()
+				: ee;
+			if (live) {
+				ui.showLookupError(word, RequestThread.describeError(cause));
+			} else {
+				ui.showErrorDialog(RequestThread.describeError(cause));
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -3,24 +3,31 @@
  * 
  * This class handles the communication with a server, in the form of a single request, 
  * updating the UI once the request is serviced.
+ * Queries are handled by QueryWorker, which renders their results as they arrive.
  * 
  * @author James Barnes (820946)
  */
 
 package client;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.InflaterInputStream;
+
+import javax.swing.SwingUtilities;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import common.JSONConsts;
 
@@ -65,59 +72,29 @@ public class RequestThread extends Thread {
 			dis = new DataInputStream(socket.getInputStream());
 
 			dos.writeUTF(message);
-			String in = dis.readUTF();
-
-			JSONObject json = new JSONObject(in);
+			JSONObject json = readResponse(dis);
 			Object content = json.opt(JSONConsts.CONTENT);
 
 			switch (json.optString(JSONConsts.COMMAND)) {
 			case JSONConsts.COMMAND_ERROR:
-				ui.showErrorDialog((String) content);
+				showErrorDialog(ui, (String) content);
 				break;
 			case JSONConsts.COMMAND_ADD:
-				ui.showAddedDialog((String) content);
+				client.syncReplica();
+				SwingUtilities.invokeLater(
+					() -> ui.showAddedDialog((String) content));
 				break;
 			case JSONConsts.COMMAND_DELETE:
-				ui.showDeletedDialog((String) content);
-				break;
-			case JSONConsts.COMMAND_QUERY:
-				ui.showDefinition((JSONArray) content);
+				client.syncReplica();
+				SwingUtilities.invokeLater(
+					() -> ui.showDeletedDialog((String) content));
 				break;
 			}
 
 			dos.close();
 			dis.close();
-		} catch (IllegalArgumentException iae) {
-			ui.showErrorDialog(
-				String.format(
-					"Invalid port or IP (see Settings). Port must be between 0 and 65535",
-					iae.getMessage()));
-		} catch (UnknownHostException uhe) {
-			ui.showErrorDialog(
-				String.format(
-					"Unknown host. Ensure the server is running "
-						+ "and the IP address is correct (see Settings) (%s)",
-					uhe.getMessage()));
-		} catch (ConnectException ce) {
-			ui.showErrorDialog(
-				String.format(
-					"Connect error. Ensure the server is running "
-						+ "and the IP address is correct (see Settings) (%s)",
-					ce.getMessage()));
-		} catch (SocketTimeoutException ste) {
-			ui.showErrorDialog(
-				String.format(
-					"Timed out. Ensure the server is running "
-						+ "and the IP address is correct (see Settings) (%s)",
-					ste.getMessage()));
-		} catch (IOException ioe) {
-			ui.showErrorDialog(
-				String.format("IO error (%s)", ioe.getMessage()));
-		} catch (JSONException je) {
-			ui.showErrorDialog(
-				String.format("Server sent bad JSON (%s)", je.getMessage()));
 		} catch (Exception e) {
-			ui.showErrorDialog(String.format("Error (%s)", e.getMessage()));
+			showErrorDialog(ui, describeError(e));
 		} finally {
 			if (socket != null) {
 				try {
@@ -130,4 +107,72 @@ public class RequestThread extends Thread {
 
 		ui.setWaiting(false);
 	}
+
+	/*
+	 * Describes an error that occurred while making a request
+	 * 
+	 * @param e Exception from the error
+	 */
+	static String describeError(Exception e) {
+		if (e instanceof IllegalArgumentException) {
+			return "Invalid port or IP (see Settings). Port must be between 0 and 65535";
+		} else if (e instanceof UnknownHostException) {
+			return String.format(
+				"Unknown host. Ensure the server is running "
+					+ "and the IP address is correct (see Settings) (%s)",
+				e.getMessage());
+		} else if (e instanceof ConnectException) {
+			return String.format(
+				"Connect error. Ensure the server is running "
+					+ "and the IP address is correct (see Settings) (%s)",
+				e.getMessage());
+		} else if (e instanceof SocketTimeoutException) {
+			return String.format(
+				"Timed out. Ensure the server is running "
+					+ "and the IP address is correct (see Settings) (%s)",
+				e.getMessage());
+		} else if (e instanceof IOException) {
+			return String.format("IO error (%s)", e.getMessage());
+		} else if (e instanceof JSONException) {
+			return String.format("Server sent bad JSON (%s)", e.getMessage());
+		}
+
+		return String.format("Error (%s)", e.getMessage());
+	}
+
+	/*
+	 * Shows an error dialog from outside the event dispatch thread
+	 * 
+	 * @param ui ClientUI to show the dialog on
+	 * 
+	 * @param message String with specific message for dialog
+	 */
+	static void showErrorDialog(ClientUI ui, String message) {
+		SwingUtilities.invokeLater(() -> ui.showErrorDialog(message));
+	}
+
+	/*
+	 * Reads a response from the server, inflating it if it was sent
+	 * compressed
+	 * 
+	 * @param dis DataInputStream from the server
+	 */
+	static JSONObject readResponse(DataInputStream dis) throws IOException {
+		JSONObject json = new JSONObject(dis.readUTF());
+		JSONObject header = json.optJSONObject(JSONConsts.CONTENT);
+		if (header == null || !JSONConsts.DEFLATE
+			.equals(header.optString(JSONConsts.ENCODING))) {
+			return json;
+		}
+
+		byte[] compressed = new byte[header.getInt(JSONConsts.LENGTH)];
+		dis.readFully(compressed);
+
+		return new JSONObject(
+			new JSONTokener(
+				new InputStreamReader(
+					new InflaterInputStream(
+						new ByteArrayInputStream(compressed)),
+					StandardCharsets.UTF_8)));
+	}
 }
@@ -13,6 +13,13 @@ public class JSONConsts {
 	public static final String COMMAND_ADD = "add";
 	public static final String COMMAND_DELETE = "delete";
 	public static final String COMMAND_QUERY = "query";
+	public static final String COMMAND_STATS = "stats";
+	public static final String COMMAND_DUMP = "dump";
+	public static final String COMMAND_IMPORT = "import";
+	public static final String COMMAND_TOP = "top";
+	public static final String COMMAND_SYNC = "sync";
+	public static final String COMMAND_REPLACE = "replace";
+	public static final String COMMAND_WATCH = "watch";
 	public static final String CONTENT = "content";
 	public static final String WORD = "word";
 	public static final String WORD_DEFINITION = "definition";
@@ -22,6 +29,35 @@ public class JSONConsts {
 	public static final String WORD_DELETED = "deleted";
 	public static final String WORD_UNKNOWN = "unknown";
 	public static final String WORD_EMPTY = "empty";
+	public static final String WORD_CONFLICT = "conflict";
+	public static final String EXPECT = "expect";
+	public static final String ABSENT = "absent";
+	public static final String LENGTH = "length";
+	public static final String VERSION = "version";
+	public static final String COMPRESS = "compress";
+	public static final String ENCODING = "encoding";
+	public static final String DEFLATE = "deflate";
+	public static final String OFFSET = "offset";
+	public static final String LIMIT = "limit";
+	public static final String TOTAL = "total";
+	public static final String COUNT = "count";
+	public static final String STREAM = "stream";
+	public static final String EPOCH = "epoch";
+	public static final String LATEST = "latest";
+	public static final String CHANGES = "changes";
+	public static final String SYNC_RESET = "reset";
+	public static final String WORDS = "words";
+	public static final String PREFIXES = "prefixes";
+	public static final String DROPPED = "dropped";
+	public static final String WATCH_PING = "ping";
+	public static final String DICTIONARY = "dictionary";
+	public static final String DICTIONARY_UNKNOWN = "unknown dictionary";
+	public static final String DICTIONARIES_DISABLED = "named dictionaries disabled";
+	public static final String IMPORT_FAILED = "import failed";
+	public static final String IMPORT_DISABLED = "file imports disabled";
+	public static final String DEFINITION_TOO_LONG = "definition too long";
 	public static final String OK = "ok";
 	public static final String BAD_REQUEST = "bad request";
+	public static final String RATE_LIMITED = "rate limited";
+	public static final String SERVER_BUSY = "server busy";
 }
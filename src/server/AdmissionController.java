@@ -0,0 +1,162 @@
+/*
+ * AdmissionController.java
+ *
+ * Decides whether the server accepts a new request. Each client IP has a
+ * token bucket (tracked lock-free as a theoretical arrival time), and the
+ * number of requests admitted but not yet finished is capped globally.
+ * Buckets of idle clients are swept on a background thread once there are
+ * too many, so that admitting a request never scans them.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+public class AdmissionController {
+	public enum Decision {
+		ADMITTED, RATE_LIMITED, OVERLOADED
+	}
+
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+	private static final int MAX_BUCKETS = 10_000;
+
+	private final long interval;
+	private final long tolerance;
+	private final int maxConcurrency;
+
+	private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final ExecutorService sweeper = Executors
+		.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "admission-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder rateLimited = new LongAdder();
+	private final LongAdder overloaded = new LongAdder();
+
+	/*
+	 * Creates a new AdmissionController
+	 *
+	 * @param rate double requests per second allowed per client, or 0 for no
+	 * limit
+	 *
+	 * @param burst int requests a client may make at once
+	 *
+	 * @param maxConcurrency int requests allowed in the server at once, or 0
+	 * for no limit
+	 */
+	public AdmissionController(double rate, int burst, int maxConcurrency) {
+		this.interval = rate > 0 ? (long) (NANOS_PER_SECOND / rate) : 0;
+		this.tolerance = interval * Math.max(0, burst - 1);
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	/*
+	 * Attempts to admit a request from client. An admitted request must be
+	 * released once it has finished.
+	 *
+	 * @param client String IP address of the client
+	 */
+	public Decision admit(String client) {
+		if (interval > 0 && !takeToken(client)) {
+			rateLimited.increment();
+			return Decision.RATE_LIMITED;
+		}
+
+		if (maxConcurrency > 0) {
+			int current;
+			do {
+				current = inFlight.get();
+				if (current >= maxConcurrency) {
+					overloaded.increment();
+					return Decision.OVERLOADED;
+				}
+			} while (!inFlight.compareAndSet(current, current + 1));
+		} else {
+			inFlight.incrementAndGet();
+		}
+
+		admitted.increment();
+		return Decision.ADMITTED;
+	}
+
+	/*
+	 * Releases a request previously admitted
+	 */
+	public void release() {
+		inFlight.decrementAndGet();
+	}
+
+	/*
+	 * Returns the admission counters as a JSONObject
+	 */
+	public JSONObject toJSON() {
+		return new JSONObject().put("admitted", admitted.sum())
+			.put("rate_limited", rateLimited.sum())
+			.put("overloaded", overloaded.sum()).put("in_flight", inFlight.get())
+			.put("clients", buckets.size());
+	}
+
+	/*
+	 * Takes a token from the client's bucket, returning false if it is empty
+	 *
+	 * @param client String IP address of the client
+	 */
+	private boolean takeToken(String client) {
+		long now = System.nanoTime();
+
+		AtomicLong bucket = buckets.get(client);
+		if (bucket == null) {
+			if (buckets.size() >= MAX_BUCKETS
+				&& sweeping.compareAndSet(false, true)) {
+				sweeper.execute(this::evictIdle);
+			}
+			bucket = buckets.computeIfAbsent(client, c -> new AtomicLong(now));
+		}
+
+		while (true) {
+			long arrival = bucket.get();
+			long earliest = Math.max(arrival, now);
+			if (earliest - now > tolerance) {
+				return false;
+			}
+			if (bucket.compareAndSet(arrival, earliest + interval)) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Removes the buckets of clients that have fully refilled, as they are
+	 * indistinguishable from new clients
+	 */
+	private void evictIdle() {
+		try {
+			long now = System.nanoTime();
+			Iterator<AtomicLong> it = buckets.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().get() <= now) {
+					it.remove();
+				}
+			}
+		} finally {
+			sweeping.set(false);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * BloomFilter.java
+ *
+ * A fixed-size Bloom filter of Strings, sized at 10 bits per expected key
+ * for a false positive rate of about 1%. A key that was never added is
+ * almost always ruled out, and a key that was added is never ruled out.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class BloomFilter {
+	private static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+
+	private final long[] bits;
+
+	/*
+	 * Creates an empty BloomFilter
+	 *
+	 * @param expectedKeys int number of keys that will be added
+	 */
+	public BloomFilter(int expectedKeys) {
+		this(new long[Math
+			.max(1, (int) (((long) expectedKeys * BITS_PER_KEY + 63) / 64))]);
+	}
+
+	private BloomFilter(long[] bits) {
+		this.bits = bits;
+	}
+
+	/*
+	 * Adds key to the filter
+	 *
+	 * @param key String to add
+	 */
+	public void add(String key) {
+		long nBits = (long) bits.length * 64;
+		int h1 = hash1(key);
+		int h2 = hash2(key);
+		for (int i = 0; i < HASHES; i++) {
+			long bit = Math.floorMod(h1 + (long) i * h2, nBits);
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/*
+	 * Returns false if key was definitely not added to the filter
+	 *
+	 * @param key String to check
+	 */
+	public boolean mightContain(String key) {
+		long nBits = (long) bits.length * 64;
+		int h1 = hash1(key);
+		int h2 = hash2(key);
+		for (int i = 0; i < HASHES; i++) {
+			long bit = Math.floorMod(h1 + (long) i * h2, nBits);
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * Writes the filter, to be read back with readFrom
+	 *
+	 * @param out DataOutputStream to write to
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(bits.length);
+		for (long word : bits) {
+			out.writeLong(word);
+		}
+	}
+
+	/*
+	 * Reads a filter written by writeTo from the buffer's position
+	 *
+	 * @param buffer ByteBuffer to read from
+	 */
+	public static BloomFilter readFrom(ByteBuffer buffer) {
+		long[] bits = new long[buffer.getInt()];
+		buffer.asLongBuffer().get(bits);
+
+		return new BloomFilter(bits);
+	}
+
+	private static int hash1(String key) {
+		return mix(key.hashCode());
+	}
+
+	private static int hash2(String key) {
+		// FNV-1a, made odd so that every probe is distinct
+		int h = 0x811C9DC5;
+		for (int i = 0; i < key.length(); i++) {
+			h = (h ^ key.charAt(i)) * 0x01000193;
+		}
+
+		return mix(h) | 1;
+	}
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		return h ^ (h >>> 16);
+	}
+}
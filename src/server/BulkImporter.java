@@ -0,0 +1,342 @@
+/*
+ * BulkImporter.java
+ *
+ * Imports definitions into a Dictionary in bulk. Input is either JSON Lines
+ * of {"word", "definition", "author"} records, a JSON array of such records,
+ * or a dictionary file. Records are parsed in parallel and merged into the
+ * dictionary in batches, each batch taking the dictionary's lock once.
+ *
+ * Can also be run offline to merge files into a dictionary file.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import common.JSONConsts;
+
+public class BulkImporter {
+	private enum Format {
+		ARRAY, DICTIONARY, LINES
+	}
+
+	private static final int BATCH_SIZE = 10_000;
+
+	private final Dictionary dictionary;
+
+	private long definitions = 0;
+	private long words = 0;
+	private long skipped = 0;
+
+	/*
+	 * Creates a new BulkImporter
+	 *
+	 * @param dictionary Dictionary to import into
+	 */
+	public BulkImporter(Dictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println(
+				"usage: <dictionary-file> <import-file> [<import-file> ...]");
+			System.exit(1);
+		}
+
+		try {
+			// unlike the server, a dictionary file that cannot be read fails
+			// the import, rather than being replaced by the imported words
+			Dictionary dictionary = Dictionary.open(
+				args[0],
+				DictionaryStore.forName(
+					System.getProperty(
+						DictionaryServer.STORAGE_PROPERTY,
+						DictionaryStore.COMPACT),
+					args[0]));
+			BulkImporter importer = new BulkImporter(dictionary);
+
+			for (int i = 1; i < args.length; i++) {
+				System.out.println(
+					importer.importFile(Paths.get(args[i])).toString());
+			}
+
+			if (dictionary.isPersistent()) {
+				dictionary.sync();
+			} else {
+				Path target = Paths.get(args[0]);
+				Path temp = target
+					.resolveSibling(target.getFileName() + ".tmp");
+				try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+					Files.newOutputStream(temp),
+					StandardCharsets.UTF_8))) {
+					dictionary.writeJSON(writer);
+				}
+
+				// replace the old file only once the new one is complete
+				try {
+					Files.move(
+						temp,
+						target,
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException amnse) {
+					Files.move(
+						temp,
+						target,
+						StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			System.out.println("Dictionary saved to file.");
+		} catch (IOException ioe) {
+			System.err.println(
+				String.format(
+					"There was an error importing the dictionary (%s).",
+					ioe.getMessage()));
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * Imports a file, returning a report of what was imported
+	 *
+	 * @param file Path to a JSON Lines, JSON array or dictionary file
+	 */
+	public JSONObject importFile(Path file) throws IOException {
+		long start = System.nanoTime();
+
+		Format format = detect(file);
+		try (BufferedReader reader = Files
+			.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			if (format == Format.ARRAY) {
+				importArray(new JSONArray(new JSONTokener(reader)));
+			} else if (format == Format.DICTIONARY) {
+				importDictionary(new JSONObject(new JSONTokener(reader)));
+			} else {
+				importLines(reader);
+			}
+		} catch (JSONException je) {
+			throw new IOException("Bad JSON in import file", je);
+		}
+
+		return report(start);
+	}
+
+	/*
+	 * Imports an array of records, returning a report of what was imported
+	 *
+	 * @param records JSONArray of {"word", "definition", "author"} records
+	 */
+	public JSONObject importRecords(JSONArray records) {
+		long start = System.nanoTime();
+		importArray(records);
+
+		return report(start);
+	}
+
+	private void importArray(JSONArray records) {
+		List<Object> batch = new ArrayList<Object>(BATCH_SIZE);
+		for (Object record : records) {
+			batch.add(record);
+			if (batch.size() == BATCH_SIZE) {
+				merge(batch.parallelStream().map(BulkImporter::parseRecord));
+				batch.clear();
+			}
+		}
+		merge(batch.parallelStream().map(BulkImporter::parseRecord));
+	}
+
+	/*
+	 * Reads JSON Lines in chunks, parsing each chunk in parallel
+	 *
+	 * @param reader BufferedReader over the records
+	 */
+	private void importLines(BufferedReader reader) throws IOException {
+		List<String> lines = new ArrayList<String>(BATCH_SIZE);
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (!line.trim().isEmpty()) {
+				lines.add(line);
+			}
+			if (lines.size() == BATCH_SIZE) {
+				merge(lines.parallelStream().map(BulkImporter::parseLine));
+				lines.clear();
+			}
+		}
+		merge(lines.parallelStream().map(BulkImporter::parseLine));
+	}
+
+	/*
+	 * Imports every definition of a dictionary file
+	 *
+	 * @param json JSONObject mapping words to arrays of definitions
+	 */
+	private void importDictionary(JSONObject json) {
+		List<String> batch = new ArrayList<String>();
+		for (String word : json.keySet()) {
+			batch.add(word);
+			if (batch.size() == BATCH_SIZE) {
+				mergeWords(json, batch);
+				batch.clear();
+			}
+		}
+		mergeWords(json, batch);
+	}
+
+	private void mergeWords(JSONObject json, List<String> batch) {
+		merge(batch.parallelStream().flatMap(word -> {
+			Object value = json.get(word);
+			JSONArray definitions = value instanceof JSONArray
+				? (JSONArray) value
+				: new JSONArray().put(value);
+			List<Object[]> records = new ArrayList<Object[]>();
+			for (Object definition : definitions) {
+				records.add(
+					definition instanceof JSONObject
+						? validate(word, (JSONObject) definition)
+						: null);
+			}
+			return records.stream();
+		}));
+	}
+
+	/*
+	 * Groups parsed records by word, keeping their order, and merges them
+	 * into the dictionary under a single acquisition of its lock
+	 *
+	 * @param records Stream of {word, definition} pairs, null if invalid
+	 */
+	private void merge(Stream<Object[]> records) {
+		List<Object[]> parsed = records.collect(Collectors.toList());
+
+		Map<String, List<JSONObject>> batch = new LinkedHashMap<String, List<JSONObject>>();
+		for (Object[] record : parsed) {
+			if (record == null) {
+				skipped++;
+				continue;
+			}
+			batch.computeIfAbsent(
+				(String) record[0],
+				w -> new ArrayList<JSONObject>()).add((JSONObject) record[1]);
+			definitions++;
+		}
+
+		if (!batch.isEmpty()) {
+			words += dictionary.addDefinitions(batch);
+		}
+	}
+
+	private JSONObject report(long start) {
+		long nanos = Math.max(1, System.nanoTime() - start);
+
+		JSONObject report = new JSONObject();
+		report.put("definitions", definitions).put("new_words", words)
+			.put("skipped", skipped).put("millis", nanos / 1_000_000)
+			.put("per_second", (long) (definitions * 1e9 / nanos));
+		definitions = words = skipped = 0;
+
+		return report;
+	}
+
+	private static Object[] parseLine(String line) {
+		try {
+			return parseRecord(new JSONObject(line));
+		} catch (JSONException je) {
+			return null;
+		}
+	}
+
+	private static Object[] parseRecord(Object record) {
+		if (!(record instanceof JSONObject)) {
+			return null;
+		}
+
+		JSONObject json = (JSONObject) record;
+		JSONObject definition = new JSONObject();
+		definition.put(
+			JSONConsts.WORD_DEFINITION,
+			json.opt(JSONConsts.WORD_DEFINITION));
+		if (json.has(JSONConsts.WORD_AUTHOR)) {
+			definition.put(
+				JSONConsts.WORD_AUTHOR,
+				json.opt(JSONConsts.WORD_AUTHOR));
+		}
+
+		return validate(json.optString(JSONConsts.WORD), definition);
+	}
+
+	/*
+	 * Returns a {word, definition} pair, or null if either is empty or the
+	 * definition is too long to ever be sent in a frame
+	 */
+	private static Object[] validate(String word, JSONObject definition) {
+		if (word == null || word.isEmpty() || Objects.toString(
+			definition.opt(JSONConsts.WORD_DEFINITION),
+			"").isEmpty() || !ProtocolCodec.fits(definition)) {
+			return null;
+		}
+
+		return new Object[] { word, definition };
+	}
+
+	/*
+	 * Detects the format of file from its first tokens, without reading the
+	 * rest of it. An object whose first value is an array or object maps
+	 * words to definitions, so is a dictionary file; one whose first value
+	 * is plain is a record, so begins JSON Lines.
+	 *
+	 * @param file Path to read
+	 */
+	private static Format detect(Path file) throws IOException {
+		try (BufferedReader reader = Files
+			.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			JSONTokener tokener = new JSONTokener(reader);
+			char first = tokener.nextClean();
+			if (first == '[') {
+				return Format.ARRAY;
+			} else if (first != '{') {
+				return Format.LINES;
+			}
+
+			char next = tokener.nextClean();
+			if (next != '"') {
+				return next == '}' ? Format.DICTIONARY : Format.LINES;
+			}
+			tokener.nextString('"');
+			if (tokener.nextClean() != ':') {
+				return Format.LINES;
+			}
+			next = tokener.nextClean();
+
+			return next == '[' || next == '{' ? Format.DICTIONARY
+				: Format.LINES;
+		} catch (JSONException je) {
+			// an unterminated key, reported once the file is parsed
+			return Format.DICTIONARY;
+		}
+	}
+}
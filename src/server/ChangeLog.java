@@ -0,0 +1,160 @@
+/*
+ * ChangeLog.java
+ *
+ * Keeps the most recent changes made to a Dictionary in a ring buffer, so
+ * that replicas can catch up from the version they last saw by fetching only
+ * the changes made since. Each change is recorded in the shape of the add or
+ * delete request that would replay it, along with its version.
+ *
+ * Versions restart when the dictionary is loaded, so each ChangeLog has the
+ * dictionary's random epoch; a replica from another epoch, or one so far behind that its changes
+ * have left the buffer, must reload the whole dictionary. So must a replica
+ * whose next change is too long to be sent in a frame.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import common.JSONConsts;
+
+public class ChangeLog implements DictionaryListener {
+	// largest encoded change that can be sent, leaving room in the frame for
+	// the response around it
+	private static final int MAX_CHANGE = ProtocolCodec.MAX_FRAME - 256;
+
+	private final long epoch;
+
+	private final String[] words;
+	private final JSONObject[] definitions;
+
+	// version of the newest change, and the number of changes held, which
+	// are the versions (latest - size, latest]
+	private long latest;
+	private int size = 0;
+
+	private final LongAdder served = new LongAdder();
+	private final LongAdder resets = new LongAdder();
+
+	/*
+	 * Creates a new ChangeLog
+	 *
+	 * @param capacity int number of changes to keep
+	 *
+	 * @param epoch long epoch of the dictionary's versions
+	 *
+	 * @param version long current version of the dictionary, whose later
+	 * changes will be recorded
+	 */
+	public ChangeLog(int capacity, long epoch, long version) {
+		this.epoch = epoch;
+		this.words = new String[Math.max(1, capacity)];
+		this.definitions = new JSONObject[words.length];
+		this.latest = version;
+	}
+
+	@Override
+	public synchronized void changed(long version, String word,
+		JSONObject definition) {
+		latest = version;
+		int slot = (int) (version % words.length);
+		words[slot] = word;
+		definitions[slot] = definition;
+		if (size < words.length) {
+			size++;
+		}
+	}
+
+	/*
+	 * Gets the changes made after version, oldest first, stopping before
+	 * their encoding would pass maxBytes, though at least one change is
+	 * returned. The content holds the changes, the version of the last of
+	 * them and the latest version. Returns null if the changes are no longer
+	 * held, the version is from another epoch, or the next change is too
+	 * long to be sent in a frame.
+	 *
+	 * @param epoch long epoch of the replica's version
+	 *
+	 * @param version long version the replica has applied every change up to
+	 *
+	 * @param maxBytes int encoded bytes of changes to return at most
+	 */
+	public synchronized JSONObject since(long epoch, long version,
+		int maxBytes) {
+		if (epoch != this.epoch || version < latest - size
+			|| version > latest) {
+			resets.increment();
+			return null;
+		}
+
+		JSONArray changes = new JSONArray();
+		int bytes = 0;
+		long next = version + 1;
+		for (; next <= latest; next++) {
+			int slot = (int) (next % words.length);
+			JSONObject change = describe(next, words[slot], definitions[slot]);
+			// with the comma separating it from the one before
+			int length = ProtocolCodec.utfLength(change.toString()) + 1;
+			if (changes.length() == 0 && length > MAX_CHANGE) {
+				resets.increment();
+				return null;
+			}
+			if (changes.length() > 0 && bytes + length > maxBytes) {
+				break;
+			}
+
+			changes.put(change);
+			bytes += length;
+		}
+		served.add(changes.length());
+
+		return new JSONObject().put(JSONConsts.EPOCH, this.epoch)
+			.put(JSONConsts.VERSION, next - 1).put(JSONConsts.LATEST, latest)
+			.put(JSONConsts.CHANGES, changes);
+	}
+
+	/*
+	 * Describes a change as the add or delete request that replays it, along
+	 * with its version
+	 *
+	 * @param version long version of the dictionary after the change
+	 *
+	 * @param word String that was changed
+	 *
+	 * @param definition JSONObject added to word, or null if word was deleted
+	 */
+	public static JSONObject describe(long version, String word,
+		JSONObject definition) {
+		JSONObject change = new JSONObject().put(JSONConsts.VERSION, version)
+			.put(JSONConsts.WORD, word);
+		if (definition == null) {
+			change.put(JSONConsts.COMMAND, JSONConsts.COMMAND_DELETE);
+		} else {
+			change.put(JSONConsts.COMMAND, JSONConsts.COMMAND_ADD)
+				.put(JSONConsts.CONTENT, definition);
+		}
+
+		return change;
+	}
+
+	/*
+	 * Gets the epoch that this log's versions belong to
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/*
+	 * Creates a JSON Object with the log's counters
+	 */
+	public synchronized JSONObject toJSON() {
+		return new JSONObject().put("capacity", words.length)
+			.put("held", size).put(JSONConsts.LATEST, latest)
+			.put("served", served.sum()).put("resets", resets.sum());
+	}
+}
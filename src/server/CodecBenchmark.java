@@ -0,0 +1,155 @@
+/*
+ * CodecBenchmark.java
+ *
+ * Measures the time and the bytes allocated per request of decoding query
+ * requests and encoding their responses, with org.json as RequestHandler did
+ * before ProtocolCodec, and with ProtocolCodec. Run it with
+ * java -cp DictionaryServer.jar server.CodecBenchmark <dictionary-file>
+ * [requests]
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import common.JSONConsts;
+
+public class CodecBenchmark {
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("usage: <dictionary-file> [requests]");
+			System.exit(1);
+		}
+
+		JSONObject dictionary = null;
+		try (InputStream is = new FileInputStream(args[0])) {
+			dictionary = new JSONObject(new JSONTokener(is));
+		} catch (IOException ioe) {
+			System.err.format(
+				"There was an error reading the dictionary file (%s).\n",
+				ioe.getMessage());
+			System.exit(1);
+		}
+
+		int count = args.length == 2 ? Integer.parseInt(args[1]) : 100000;
+		List<String> words = new ArrayList<String>(dictionary.keySet());
+		if (words.isEmpty()) {
+			words.add("word");
+		}
+
+		// the requests a client would send, framed by writeUTF
+		List<byte[]> requests = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			new DataOutputStream(bytes).writeUTF(
+				new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_QUERY)
+					.put(JSONConsts.WORD, words.get(i % words.size()))
+					.toString());
+			requests.add(bytes.toByteArray());
+		}
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+		DataOutputStream sink = new DataOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+
+		System.out.format(
+			"%-8s %9s %12s %14s\n",
+			"codec",
+			"requests",
+			"nanos/req",
+			"bytes/req");
+		for (boolean codec : new boolean[] { false, true }) {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				run(codec, requests, dictionary, sink);
+			}
+
+			long allocated = threads
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+			long start = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				run(codec, requests, dictionary, sink);
+			}
+			long nanos = System.nanoTime() - start;
+			allocated = threads
+				.getThreadAllocatedBytes(Thread.currentThread().getId())
+				- allocated;
+
+			long total = (long) ROUNDS * requests.size();
+			System.out.format(
+				"%-8s %9d %12d %14d\n",
+				codec ? "stream" : "org.json",
+				requests.size(),
+				nanos / total,
+				allocated / total);
+		}
+	}
+
+	/*
+	 * Decodes every request and encodes its response
+	 *
+	 * @param codec boolean true to use ProtocolCodec, false for org.json
+	 *
+	 * @param requests List of framed requests
+	 *
+	 * @param dictionary JSONObject mapping words to their definitions
+	 *
+	 * @param sink DataOutputStream to write responses to
+	 */
+	private static void run(boolean codec, List<byte[]> requests,
+		JSONObject dictionary, DataOutputStream sink) throws IOException {
+		ProtocolCodec protocol = ProtocolCodec.get();
+		for (byte[] request : requests) {
+			DataInputStream dis = new DataInputStream(
+				new ByteArrayInputStream(request));
+			if (codec) {
+				protocol.readRequest(dis);
+				protocol.encodeQuery(
+					dictionary.optJSONArray(protocol.getWord()),
+					0,
+					0);
+				protocol.writeEncoded(sink);
+			} else {
+				JSONObject json = new JSONObject(dis.readUTF());
+				JSONObject out = new JSONObject();
+				out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_QUERY);
+				out.put(JSONConsts.VERSION, 0);
+				out.put(JSONConsts.EPOCH, 0);
+				JSONArray content = dictionary
+					.optJSONArray(json.optString(JSONConsts.WORD));
+				out.put(
+					JSONConsts.CONTENT,
+					content == null ? new JSONArray()
+						: new JSONArray(content.toString()));
+				sink.writeUTF(out.toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * CompactStore.java
+ *
+ * DictionaryStore with a purpose-built entry model. Each word holds flat
+ * arrays of UTF-8 encoded definitions and author ids, with every author
+ * string stored once in a shared table. JSON objects are only built when
+ * definitions leave the store.
+ *
+ * The store is versioned: its index is a PersistentMap and entries are never
+ * changed once published, so each change publishes a new immutable State.
+ * A snapshot is the current State, and is read without any locking.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import common.JSONConsts;
+
+public class CompactStore implements DictionaryStore {
+	// author ids with special meaning
+	private static final int NO_AUTHOR = -1;
+	private static final int RAW_JSON = -2;
+
+	// only used by the writer, which holds the Dictionary's lock
+	private final Map<String, Integer> authorIds = new HashMap<String, Integer>();
+
+	private volatile State state = new State(
+		PersistentMap.<Entry>empty(),
+		new String[16]);
+
+	@Override
+	public int load(JSONObject json) {
+		authorIds.clear();
+		state = new State(PersistentMap.<Entry>empty(), new String[16]);
+
+		int skipped = 0;
+		for (String word : json.keySet()) {
+			Object value = json.get(word);
+			if (value instanceof JSONArray) {
+				for (Object definition : (JSONArray) value) {
+					if (definition instanceof JSONObject) {
+						addDefinition(word, (JSONObject) definition);
+					} else {
+						skipped++;
+					}
+				}
+			} else if (value instanceof JSONObject) {
+				addDefinition(word, (JSONObject) value);
+			} else {
+				skipped++;
+			}
+		}
+
+		return skipped;
+	}
+
+	@Override
+	public JSONArray getDefinitions(String word) {
+		return state.getDefinitions(word);
+	}
+
+	@Override
+	public boolean addDefinition(String word, JSONObject definition) {
+		State current = state;
+		String[] authors = current.authors;
+
+		byte[] text;
+		int author;
+		if (isCompactable(definition)) {
+			String name = definition.optString(JSONConsts.WORD_AUTHOR, null);
+			text = encode(definition.getString(JSONConsts.WORD_DEFINITION));
+			if (name == null) {
+				author = NO_AUTHOR;
+			} else {
+				author = authorId(name);
+				if (author == authors.length) {
+					authors = Arrays.copyOf(authors, authors.length * 2);
+				}
+				// readers never look past the ids they have seen, so the
+				// table can be filled in place
+				authors[author] = name;
+			}
+		} else {
+			// anything beyond a definition and author is kept verbatim
+			text = encode(definition.toString());
+			author = RAW_JSON;
+		}
+
+		Entry entry = current.index.get(word);
+		Entry added = entry == null ? new Entry(text, author)
+			: entry.plus(text, author);
+		state = new State(current.index.plus(word, added), authors);
+
+		return entry != null;
+	}
+
+	@Override
+	public boolean deleteWord(String word) {
+		State current = state;
+		PersistentMap<Entry> index = current.index.minus(word);
+		if (index == current.index) {
+			return false;
+		}
+
+		state = new State(index, current.authors);
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return state.size();
+	}
+
+	@Override
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		for (Map.Entry<String, JSONArray> entry : state) {
+			json.put(entry.getKey(), entry.getValue());
+		}
+
+		return json;
+	}
+
+	@Override
+	public Snapshot snapshot() {
+		return state;
+	}
+
+	@Override
+	public boolean isVersioned() {
+		return true;
+	}
+
+	/*
+	 * Gets the id of an author, assigning the next id if they are new
+	 *
+	 * @param author String name of the author
+	 */
+	private int authorId(String author) {
+		Integer id = authorIds.get(author);
+		if (id == null) {
+			id = authorIds.size();
+			authorIds.put(author, id);
+		}
+
+		return id;
+	}
+
+	/*
+	 * Rebuilds the JSONObject for a stored definition
+	 *
+	 * @param definition byte[] UTF-8 definition text
+	 *
+	 * @param author int id of the author
+	 *
+	 * @param authors String[] table the author id refers to
+	 */
+	private static JSONObject toJSON(byte[] definition, int author,
+		String[] authors) {
+		String text = new String(definition, StandardCharsets.UTF_8);
+		if (author == RAW_JSON) {
+			return new JSONObject(text);
+		}
+
+		JSONObject json = new JSONObject();
+		json.put(JSONConsts.WORD_DEFINITION, text);
+		if (author != NO_AUTHOR) {
+			json.put(JSONConsts.WORD_AUTHOR, authors[author]);
+		}
+
+		return json;
+	}
+
+	/*
+	 * Returns true if definition only has a String definition and author
+	 *
+	 * @param definition JSONObject to check
+	 */
+	private static boolean isCompactable(JSONObject definition) {
+		if (!(definition.opt(JSONConsts.WORD_DEFINITION) instanceof String)) {
+			return false;
+		}
+
+		for (String key : definition.keySet()) {
+			if (!key.equals(JSONConsts.WORD_DEFINITION)
+				&& !(key.equals(JSONConsts.WORD_AUTHOR)
+					&& definition.get(key) instanceof String)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static byte[] encode(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Internal class for a published version of the store
+	 */
+	private static class State implements Snapshot {
+		private final PersistentMap<Entry> index;
+		private final String[] authors;
+
+		private State(PersistentMap<Entry> index, String[] authors) {
+			this.index = index;
+			this.authors = authors;
+		}
+
+		@Override
+		public int size() {
+			return index.size();
+		}
+
+		@Override
+		public JSONArray getDefinitions(String word) {
+			Entry entry = index.get(word);
+			return entry == null ? null : entry.toJSON(authors);
+		}
+
+		@Override
+		public int countDefinitions(String word) {
+			Entry entry = index.get(word);
+			return entry == null ? 0 : entry.size;
+		}
+
+		@Override
+		public JSONArray getDefinitions(String word, int offset, int limit) {
+			Entry entry = index.get(word);
+			return entry == null ? new JSONArray()
+				: entry.toJSON(authors, offset, limit);
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, JSONArray>> iterator() {
+			return new MapSnapshot<Entry>(index, entry -> entry.toJSON(authors))
+				.iterator();
+		}
+	}
+
+	/*
+	 * Internal class holding the definitions of a single word. An Entry never
+	 * changes: adding a definition returns a new Entry, which appends to the
+	 * same arrays while they have room, as older Entries only read up to
+	 * their own size.
+	 */
+	private static class Entry {
+		private final byte[][] definitions;
+		private final int[] authors;
+		private final int size;
+
+		private Entry(byte[] definition, int author) {
+			this(new byte[][] { definition }, new int[] { author }, 1);
+		}
+
+		private Entry(byte[][] definitions, int[] authors, int size) {
+			this.definitions = definitions;
+			this.authors = authors;
+			this.size = size;
+		}
+
+		private Entry plus(byte[] definition, int author) {
+			byte[][] newDefinitions = definitions;
+			int[] newAuthors = authors;
+			if (size == definitions.length) {
+				newDefinitions = Arrays.copyOf(definitions, size * 2);
+				newAuthors = Arrays.copyOf(authors, size * 2);
+			}
+			newDefinitions[size] = definition;
+			newAuthors[size] = author;
+
+			return new Entry(newDefinitions, newAuthors, size + 1);
+		}
+
+		private JSONArray toJSON(String[] authorTable) {
+			return toJSON(authorTable, 0, size);
+		}
+
+		private JSONArray toJSON(String[] authorTable, int offset, int limit) {
+			JSONArray json = new JSONArray();
+			int end = (int) Math.min(size, (long) offset + limit);
+			for (int i = offset; i < end; i++) {
+				json.put(CompactStore.toJSON(definitions[i], authors[i], authorTable));
+			}
+
+			return json;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * CompressionBenchmark.java
+ *
+ * Measures the CPU cost of deflating query responses against the bytes it
+ * saves, on a dictionary file and on a synthetic dictionary whose words have
+ * many long definitions. Run it with
+ * java -cp DictionaryServer.jar server.CompressionBenchmark <dictionary-file>
+ * [synthetic-words]
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import common.JSONConsts;
+
+public class CompressionBenchmark {
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+	private static final int[] THRESHOLDS = { 0, 256, 1024, 4096 };
+	private static final int MAX_DEFINITIONS = 60;
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("usage: <dictionary-file> [synthetic-words]");
+			System.exit(1);
+		}
+
+		JSONObject dictionary = null;
+		try (InputStream is = new FileInputStream(args[0])) {
+			dictionary = new JSONObject(new JSONTokener(is));
+		} catch (IOException ioe) {
+			System.err.format(
+				"There was an error reading the dictionary file (%s).\n",
+				ioe.getMessage());
+			System.exit(1);
+		}
+
+		int syntheticWords = args.length == 2 ? Integer.parseInt(args[1])
+			: 10000;
+
+		System.out.format(
+			"%-12s %9s %9s %12s %12s %7s %12s\n",
+			"dictionary",
+			"threshold",
+			"responses",
+			"raw_bytes",
+			"sent_bytes",
+			"ratio",
+			"cpu_micros");
+		run(args[0], responses(dictionary));
+		run(
+			"synthetic",
+			responses(synthesise(dictionary, syntheticWords, new Random(42))));
+	}
+
+	/*
+	 * Prints the cost and savings of compressing responses at each threshold
+	 *
+	 * @param name String name of the dictionary
+	 *
+	 * @param responses List of query responses
+	 */
+	private static void run(String name, List<byte[]> responses) {
+		for (int threshold : THRESHOLDS) {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				deflateAll(responses, threshold);
+			}
+
+			long raw = 0;
+			long sent = 0;
+			int compressed = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				raw = 0;
+				sent = 0;
+				compressed = 0;
+				for (byte[] response : responses) {
+					raw += response.length;
+					if (response.length < threshold) {
+						sent += response.length;
+					} else {
+						sent += ResponseCompressor.deflate(response).length;
+						compressed++;
+					}
+				}
+			}
+			long micros = (System.nanoTime() - start) / 1000 / ROUNDS;
+
+			System.out.format(
+				"%-12s %9d %9d %12d %12d %7.3f %12d\n",
+				name.length() > 12 ? name.substring(name.length() - 12) : name,
+				threshold,
+				compressed,
+				raw,
+				sent,
+				raw == 0 ? 1.0 : (double) sent / raw,
+				micros);
+		}
+	}
+
+	private static void deflateAll(List<byte[]> responses, int threshold) {
+		for (byte[] response : responses) {
+			if (response.length >= threshold) {
+				ResponseCompressor.deflate(response);
+			}
+		}
+	}
+
+	/*
+	 * Builds the query response the server sends for each word
+	 *
+	 * @param dictionary JSONObject mapping words to their definitions
+	 */
+	private static List<byte[]> responses(JSONObject dictionary) {
+		List<byte[]> responses = new ArrayList<byte[]>();
+		for (String word : dictionary.keySet()) {
+			Object definitions = dictionary.get(word);
+			if (!(definitions instanceof JSONArray)) {
+				definitions = new JSONArray().put(definitions);
+			}
+
+			responses.add(
+				new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_QUERY)
+					.put(JSONConsts.CONTENT, definitions).toString()
+					.getBytes(StandardCharsets.UTF_8));
+		}
+
+		return responses;
+	}
+
+	/*
+	 * Generates a dictionary of words with up to MAX_DEFINITIONS long
+	 * definitions each, drawing on the vocabulary of an existing dictionary
+	 *
+	 * @param dictionary JSONObject to take the vocabulary from
+	 *
+	 * @param words int number of words to generate
+	 *
+	 * @param random Random to generate with
+	 */
+	private static JSONObject synthesise(JSONObject dictionary, int words,
+		Random random) {
+		List<String> vocabulary = new ArrayList<String>();
+		for (String word : dictionary.keySet()) {
+			vocabulary.add(word);
+			String text = dictionary.get(word).toString();
+			for (String token : text.split("[^\\p{L}]+")) {
+				if (!token.isEmpty()) {
+					vocabulary.add(token);
+				}
+			}
+		}
+		if (vocabulary.isEmpty()) {
+			vocabulary.add("word");
+		}
+
+		String[] authors = { "nature", "Steve Jobs", "James", "anonymous" };
+		JSONObject synthetic = new JSONObject();
+		for (int i = 0; i < words; i++) {
+			JSONArray definitions = new JSONArray();
+			int count = 1 + random.nextInt(MAX_DEFINITIONS);
+			for (int j = 0; j < count; j++) {
+				StringBuilder text = new StringBuilder();
+				int length = 10 + random.nextInt(30);
+				for (int k = 0; k < length; k++) {
+					if (k > 0) {
+						text.append(' ');
+					}
+					text.append(
+						vocabulary.get(random.nextInt(vocabulary.size())));
+				}
+
+				definitions.put(
+					new JSONObject()
+						.put(JSONConsts.WORD_DEFINITION, text.toString()).put(
+							JSONConsts.WORD_AUTHOR,
+							authors[random.nextInt(authors.length)]));
+			}
+			synthetic.put("word" + i, definitions);
+		}
+
+		return synthetic;
+	}
+}
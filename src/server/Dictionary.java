@@ -1,8 +1,17 @@
 /*
  * Dictionary.java
  * 
- * This class maintains a simple dictionary, built upon a JSONObject.
- * It is thread-safe.
+ * This class maintains a simple dictionary, built upon a DictionaryStore.
+ * It is thread-safe. Changes are serialised by a lock, while queries on a
+ * versioned store read its latest snapshot without taking the lock.
+ * 
+ * Each word has a version, that of the last change made to it, so that
+ * changes can be made conditional on a word being unchanged since it was
+ * read. Versions restart whenever a dictionary is loaded, so they belong to
+ * the dictionary's random epoch, and are only comparable within it. Only
+ * the versions of words changed since loading are kept, and a deleted word's
+ * is dropped; every other word is at the version of the latest deletion (0
+ * if there has been none), which never matches a version read before it.
  * 
  * @author James Barnes (820946)
  */
@@ -12,7 +21,17 @@ package server;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.json.JSONArray;
@@ -21,9 +40,31 @@ import org.json.JSONObject;
 import org.json.JSONTokener;
 
 public class Dictionary {
+	// expected versions that a conditional change may be given instead of a
+	// word's version: any version, or the word having no definitions
+	public static final long ANY_VERSION = -1;
+	public static final long ABSENT = -2;
+	// expected version read from another epoch, which no word is at
+	public static final long OTHER_EPOCH = -3;
+
+	// words encoded per task when writing in parallel
+	private static final int ENCODE_CHUNK_SIZE = 4096;
+
 	private final ReentrantLock lock;
 
-	private JSONObject dictionary = null;
+	private final DictionaryStore dictionary;
+	private final List<DictionaryListener> listeners = new CopyOnWriteArrayList<DictionaryListener>();
+	private final long epoch = ThreadLocalRandom.current()
+		.nextLong(Long.MAX_VALUE);
+	// versions of the words changed since loading and not deleted since,
+	// written under lock
+	private final Map<String, Long> wordVersions = new ConcurrentHashMap<String, Long>();
+	// version of the words without one of their own, written under lock
+	private volatile long baseVersion = 0;
+
+	// incremented on every change, guarded by lock
+	private long version = 0;
+	private boolean closed = false;
 
 	/*
 	 * Creates a Dictionary from the file pointed to by filename
@@ -31,13 +72,43 @@ public class Dictionary {
 	 * @param filename file to read dictionary from
 	 */
 	public Dictionary(String filename) {
-		lock = new ReentrantLock();
+		this(filename, new JSONStore());
+	}
+
+	/*
+	 * Creates a Dictionary from the file pointed to by filename, held in the
+	 * given DictionaryStore
+	 * 
+	 * @param filename file to read dictionary from
+	 * 
+	 * @param store empty DictionaryStore to hold the dictionary
+	 */
+	public Dictionary(String filename, DictionaryStore store) {
+		this(store);
+
+		try {
+			if (dictionary.recover()) {
+				System.out.format(
+					"Dictionary successfully recovered from storage (%d words).\n",
+					dictionary.size());
+				return;
+			}
+		} catch (IOException ioe) {
+			System.err.println(
+				String.format(
+					"There was an error when recovering the dictionary (%s).",
+					ioe.getMessage()));
+			ioe.printStackTrace();
+			System.exit(1);
+		}
 
 		try (InputStream is = new FileInputStream(filename)) {
-			dictionary = new JSONObject(new JSONTokener(is));
-			System.out.println("Dictionary successfully read from file.");
+			load(filename, new JSONObject(new JSONTokener(is)));
+			System.out.format(
+				"Dictionary successfully read from file (%d words).\n",
+				dictionary.size());
 		} catch (JSONException je) {
-			dictionary = new JSONObject();
+			dictionary.load(new JSONObject());
 			System.out.println(
 				"There was an error in the dictionary file.\n"
 					+ "Resorting to an empty dictionary.");
@@ -51,17 +122,130 @@ public class Dictionary {
 		}
 	}
 
+	private Dictionary(DictionaryStore store) {
+		lock = new ReentrantLock();
+		dictionary = store;
+	}
+
+	/*
+	 * Opens a Dictionary from the file pointed to by filename, held in the
+	 * given DictionaryStore, throwing rather than exiting if it cannot be
+	 * read, so that a server can open dictionaries while running. Unlike the
+	 * constructor it never resorts to an empty dictionary, nor drops values
+	 * that are not definitions, as saving either would overwrite the file
+	 * with less than it held.
+	 * 
+	 * @param filename file to read dictionary from
+	 * 
+	 * @param store empty DictionaryStore to hold the dictionary, closed if
+	 * the file cannot be read
+	 */
+	public static Dictionary open(String filename, DictionaryStore store)
+		throws IOException {
+		try {
+			return open(filename, new Dictionary(store));
+		} catch (IOException | RuntimeException e) {
+			store.close();
+			throw e;
+		}
+	}
+
+	private static Dictionary open(String filename, Dictionary opened)
+		throws IOException {
+		DictionaryStore store = opened.dictionary;
+		if (store.recover()) {
+			Log.info(
+				"Dictionary recovered from storage",
+				"file",
+				filename,
+				"words",
+				store.size());
+			return opened;
+		}
+
+		JSONObject json;
+		try (InputStream is = new FileInputStream(filename)) {
+			json = new JSONObject(new JSONTokener(is));
+		} catch (JSONException je) {
+			throw new IOException("not a dictionary file", je);
+		}
+		// checked before loading, as a persistent store keeps what it loads
+		int invalid = countInvalid(json);
+		if (invalid > 0) {
+			throw new IOException(
+				String.format("%d values are not definitions", invalid));
+		}
+		opened.load(filename, json);
+		Log.info(
+			"Dictionary read from file",
+			"file",
+			filename,
+			"words",
+			store.size());
+
+		return opened;
+	}
+
+	/*
+	 * Counts the values in json that are not definitions, nor arrays of them,
+	 * which the stores skip when loading
+	 * 
+	 * @param json JSONObject mapping words to arrays of definitions
+	 */
+	private static int countInvalid(JSONObject json) {
+		int invalid = 0;
+		for (String word : json.keySet()) {
+			Object value = json.get(word);
+			if (value instanceof JSONArray) {
+				for (Object definition : (JSONArray) value) {
+					if (!(definition instanceof JSONObject)) {
+						invalid++;
+					}
+				}
+			} else if (!(value instanceof JSONObject)) {
+				invalid++;
+			}
+		}
+
+		return invalid;
+	}
+
+	/*
+	 * Loads json into the store, warning of any values it skipped
+	 * 
+	 * @param filename String file json was read from
+	 * 
+	 * @param json JSONObject mapping words to arrays of definitions
+	 */
+	private void load(String filename, JSONObject json) {
+		int skipped = dictionary.load(json);
+		if (skipped > 0) {
+			// they are not written back when the dictionary is saved
+			Log.warn(
+				"Skipped values that are not definitions",
+				"file",
+				filename,
+				"skipped",
+				skipped);
+		}
+	}
+
 	/*
 	 * Gets the definitions of word found in the Dictionary
 	 * 
 	 * @param word String to get definitions of
 	 */
 	public JSONArray getDefinitions(String word) {
+		if (dictionary.isVersioned()) {
+			// reads are served from the latest version without locking
+			return dictionary.snapshot().getDefinitions(word);
+		}
+
 		JSONArray definitions = null;
 
 		lock.lock();
 		try {
-			definitions = dictionary.optJSONArray(word);
+			definitions = dictionary.getDefinitions(word);
 		} finally {
 			lock.unlock();
 		}
@@ -69,6 +253,36 @@ public class Dictionary {
 		return definitions;
 	}
 
+	/*
+	 * Takes a point-in-time snapshot holding at least word, so that its
+	 * definitions can be counted and read in ranges consistently without
+	 * holding the lock
+	 * 
+	 * @param word String whose definitions will be read
+	 */
+	public DictionaryStore.Snapshot snapshotWord(String word) {
+		if (dictionary.isVersioned()) {
+			return dictionary.snapshot();
+		}
+
+		JSONArray definitions = null;
+
+		lock.lock();
+		try {
+			definitions = dictionary.getDefinitions(word);
+			if (definitions != null) {
+				definitions = new JSONArray(definitions.toList());
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		return new MapSnapshot<JSONArray>(
+			definitions == null ? Collections.<String, JSONArray>emptyMap()
+				: Collections.singletonMap(word, definitions),
+			copy -> copy);
+	}
+
 	/*
 	 * Adds a definition to word in the dictionary, returning true if the word
 	 * was already in the Dicitionary
@@ -79,22 +293,67 @@ public class Dictionary {
 	 * validity)
 	 */
 	public boolean addDefintion(String word, JSONObject definition) {
-		boolean isNew = false;
-		JSONArray definitions = null;
+		return addDefinition(word, definition, ANY_VERSION).existed();
+	}
+
+	/*
+	 * Adds a definition to word in the dictionary if the word is at the
+	 * expected version, checking and adding atomically
+	 * 
+	 * @param word String word to add definition to
+	 * 
+	 * @param definiton JSONObjet containing the definition (not checked for
+	 * validity)
+	 * 
+	 * @param expected long version word must be at, ANY_VERSION, or ABSENT
+	 * if word must have no definitions
+	 */
+	public WriteResult addDefinition(String word, JSONObject definition,
+		long expected) {
+		lock.lock();
+		try {
+			checkOpen();
+			if (!matches(word, expected)) {
+				return new WriteResult(true, false, getWordVersion(word));
+			}
+
+			boolean existed = dictionary.addDefinition(word, definition);
+			changed(word, definition);
+			return new WriteResult(false, existed, version);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Adds many definitions to the dictionary while holding the lock once,
+	 * returning the number of words that were not already in the Dictionary
+	 * 
+	 * @param definitions Map from words to the definitions to add to them
+	 */
+	public int addDefinitions(Map<String, List<JSONObject>> definitions) {
+		int added = 0;
 
 		lock.lock();
 		try {
-			isNew = dictionary.has(word);
-			definitions = isNew ? dictionary.optJSONArray(word)
-				: new JSONArray();
-			List<Object> newDefinitions = definitions.toList();
-			newDefinitions.add(definition);
-			dictionary.put(word, new JSONArray(newDefinitions));
+			checkOpen();
+			for (Map.Entry<String, List<JSONObject>> entry : definitions
+				.entrySet()) {
+				boolean existed = true;
+				for (JSONObject definition : entry.getValue()) {
+					existed &= dictionary
+						.addDefinition(entry.getKey(), definition);
+					changed(entry.getKey(), definition);
+				}
+				if (!existed) {
+					added++;
+				}
+			}
 		} finally {
 			lock.unlock();
 		}
 
-		return isNew;
+		return added;
 	}
 
 	/*
@@ -104,16 +363,128 @@ public class Dictionary {
 	 * @param word String to delete from Dictionary
 	 */
 	public boolean deleteWord(String word) {
-		boolean deleted = false;
+		return deleteWord(word, ANY_VERSION).existed();
+	}
 
+	/*
+	 * Deletes a word and all associated definitions from the dictionary if
+	 * the word is at the expected version, checking and deleting atomically
+	 * 
+	 * @param word String to delete from Dictionary
+	 * 
+	 * @param expected long version word must be at, or ANY_VERSION
+	 */
+	public WriteResult deleteWord(String word, long expected) {
 		lock.lock();
 		try {
-			deleted = dictionary.remove(word) != null;
+			checkOpen();
+			if (!matches(word, expected)) {
+				return new WriteResult(true, false, getWordVersion(word));
+			}
+
+			boolean existed = dictionary.deleteWord(word);
+			if (existed) {
+				changed(word, null);
+			}
+			return new WriteResult(false, existed, getWordVersion(word));
 		} finally {
 			lock.unlock();
 		}
+	}
 
-		return deleted;
+	/*
+	 * Replaces all the definitions of word if the word is at the expected
+	 * version, atomically. Listeners see the replacement as the word's
+	 * deletion followed by the addition of each new definition.
+	 * 
+	 * @param word String whose definitions are replaced
+	 * 
+	 * @param definitions List of JSONObject definitions (not checked for
+	 * validity), or an empty List to delete word
+	 * 
+	 * @param expected long version word must be at, ANY_VERSION, or ABSENT
+	 * if word must have no definitions
+	 */
+	public WriteResult replaceDefinitions(String word,
+		List<JSONObject> definitions, long expected) {
+		lock.lock();
+		try {
+			checkOpen();
+			if (!matches(word, expected)) {
+				return new WriteResult(true, false, getWordVersion(word));
+			}
+
+			boolean existed = dictionary.deleteWord(word);
+			if (existed) {
+				changed(word, null);
+			}
+			for (JSONObject definition : definitions) {
+				dictionary.addDefinition(word, definition);
+				changed(word, definition);
+			}
+			return new WriteResult(false, existed, getWordVersion(word));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Gets the version of word, that of the last change made to it, or that
+	 * of the latest deletion if it has not changed since the dictionary was
+	 * loaded or was deleted. A word's version read before its definitions
+	 * never claims them to be newer than they are.
+	 * 
+	 * @param word String to get the version of
+	 */
+	public long getWordVersion(String word) {
+		Long version = wordVersions.get(word);
+		return version == null ? baseVersion : version;
+	}
+
+	/*
+	 * Gets the epoch the dictionary's versions belong to
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/*
+	 * Returns true if word satisfies the expected version of a conditional
+	 * change. Must be called with the lock held.
+	 * 
+	 * @param word String to be changed
+	 * 
+	 * @param expected long version word must be at, ANY_VERSION, ABSENT, or
+	 * OTHER_EPOCH, which never matches
+	 */
+	private boolean matches(String word, long expected) {
+		if (expected == ANY_VERSION) {
+			return true;
+		} else if (expected == ABSENT) {
+			return dictionary.getDefinitions(word) == null;
+		}
+
+		return getWordVersion(word) == expected;
+	}
+
+	/*
+	 * Records a change made to word, giving it the next version. Must be
+	 * called with the lock held.
+	 * 
+	 * @param word String that was changed
+	 * 
+	 * @param definition JSONObject added to word, or null if word was deleted
+	 */
+	private void changed(String word, JSONObject definition) {
+		version++;
+		if (definition == null) {
+			// raised first, so that the word is never seen at an older version
+			baseVersion = version;
+			wordVersions.remove(word);
+		} else {
+			wordVersions.put(word, version);
+		}
+		notifyListeners(word, definition);
 	}
 
 	/*
@@ -124,11 +495,257 @@ public class Dictionary {
 
 		lock.lock();
 		try {
-			dictString = dictionary.toString();
+			dictString = dictionary.toJSON().toString();
 		} finally {
 			lock.unlock();
 		}
 
 		return dictString;
 	}
+
+	/*
+	 * Stops the dictionary from accepting changes, so that a final snapshot
+	 * includes every change that was acknowledged
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Returns true if the dictionary's store keeps its own files, in which
+	 * case it is saved with sync rather than written to the dictionary file
+	 */
+	public boolean isPersistent() {
+		return dictionary.isPersistent();
+	}
+
+	/*
+	 * Writes every change made so far to a persistent store's files
+	 */
+	public void sync() throws IOException {
+		lock.lock();
+		try {
+			dictionary.sync();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Stops the store's background work once the dictionary has been saved
+	 * and is no longer used
+	 */
+	public void dispose() {
+		lock.lock();
+		try {
+			closed = true;
+			dictionary.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Gets the number of words in the dictionary
+	 */
+	public int size() {
+		if (dictionary.isVersioned()) {
+			return dictionary.snapshot().size();
+		}
+
+		lock.lock();
+		try {
+			return dictionary.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Registers a listener to be notified of every later change
+	 * 
+	 * @param listener DictionaryListener to notify
+	 */
+	public void addListener(DictionaryListener listener) {
+		listeners.add(listener);
+	}
+
+	private void notifyListeners(String word, JSONObject definition) {
+		for (DictionaryListener listener : listeners) {
+			listener.changed(version, word, definition);
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Dictionary is closed");
+		}
+	}
+
+	/*
+	 * Gets the version of the dictionary, which increases with every change
+	 */
+	public long getVersion() {
+		lock.lock();
+		try {
+			return version;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Takes a point-in-time snapshot of the dictionary and writes it to writer
+	 * in JSON format, returning the version written. The lock is only held
+	 * while taking the snapshot, not while writing.
+	 * 
+	 * @param writer Writer to write the dictionary to
+	 */
+	public long writeJSON(Writer writer) throws IOException {
+		return writeJSON(writer, 1);
+	}
+
+	/*
+	 * Takes a point-in-time snapshot of the dictionary and writes it to writer
+	 * in JSON format, returning the version written. Chunks of words are
+	 * encoded on up to parallelism threads, and written in order.
+	 * 
+	 * @param writer Writer to write the dictionary to
+	 * 
+	 * @param parallelism int maximum number of chunks encoded at once
+	 */
+	public long writeJSON(Writer writer, int parallelism) throws IOException {
+		DictionaryStore.Snapshot snapshot = null;
+		long snapshotVersion = 0;
+
+		lock.lock();
+		try {
+			snapshot = dictionary.snapshot();
+			snapshotVersion = version;
+		} finally {
+			lock.unlock();
+		}
+
+		writer.write('{');
+		if (parallelism <= 1) {
+			boolean first = true;
+			for (Map.Entry<String, JSONArray> entry : snapshot) {
+				if (!first) {
+					writer.write(',');
+				}
+				writer.write(JSONObject.quote(entry.getKey()));
+				writer.write(':');
+				entry.getValue().write(writer);
+				first = false;
+			}
+		} else {
+			Deque<CompletableFuture<String>> pending = new ArrayDeque<CompletableFuture<String>>();
+			List<Map.Entry<String, JSONArray>> chunk = new ArrayList<Map.Entry<String, JSONArray>>();
+			boolean first = true;
+			for (Map.Entry<String, JSONArray> entry : snapshot) {
+				chunk.add(entry);
+				if (chunk.size() == ENCODE_CHUNK_SIZE) {
+					pending.add(encodeAsync(chunk));
+					chunk = new ArrayList<Map.Entry<String, JSONArray>>();
+				}
+				if (pending.size() == parallelism) {
+					first = writeChunk(writer, pending.remove().join(), first);
+				}
+			}
+			pending.add(encodeAsync(chunk));
+			while (!pending.isEmpty()) {
+				first = writeChunk(writer, pending.remove().join(), first);
+			}
+		}
+		writer.write('}');
+
+		return snapshotVersion;
+	}
+
+	/*
+	 * Encodes a chunk of words as the members of a JSON object, in the
+	 * background
+	 * 
+	 * @param chunk List of words and their definitions
+	 */
+	private static CompletableFuture<String> encodeAsync(
+		List<Map.Entry<String, JSONArray>> chunk) {
+		return CompletableFuture.supplyAsync(() -> {
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, JSONArray> entry : chunk) {
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(JSONObject.quote(entry.getKey())).append(':')
+					.append(entry.getValue().toString());
+			}
+			return sb.toString();
+		});
+	}
+
+	/*
+	 * Writes an encoded chunk, returning whether nothing has been written yet
+	 * 
+	 * @param writer Writer to write the chunk to
+	 * 
+	 * @param encoded String chunk from encodeAsync
+	 * 
+	 * @param first true if no chunk has been written yet
+	 */
+	private static boolean writeChunk(Writer writer, String encoded,
+		boolean first) throws IOException {
+		if (encoded.isEmpty()) {
+			return first;
+		}
+		if (!first) {
+			writer.write(',');
+		}
+		writer.write(encoded);
+
+		return false;
+	}
+
+	/*
+	 * The outcome of a conditional change
+	 */
+	public static class WriteResult {
+		private final boolean conflict;
+		private final boolean existed;
+		private final long version;
+
+		private WriteResult(boolean conflict, boolean existed, long version) {
+			this.conflict = conflict;
+			this.existed = existed;
+			this.version = version;
+		}
+
+		/*
+		 * Returns true if the word was not at the expected version, so no
+		 * change was made
+		 */
+		public boolean isConflict() {
+			return conflict;
+		}
+
+		/*
+		 * Returns true if the word had definitions before the change (false
+		 * on a conflict)
+		 */
+		public boolean existed() {
+			return existed;
+		}
+
+		/*
+		 * Gets the word's version after the change, or its current version
+		 * on a conflict
+		 */
+		public long getVersion() {
+			return version;
+		}
+	}
 }
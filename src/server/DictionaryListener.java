@@ -0,0 +1,27 @@
+/*
+ * DictionaryListener.java
+ * 
+ * Interface for objects notified of every change made to a Dictionary.
+ * Listeners are called while the Dictionary's lock is held, in the order the
+ * changes were made, so they must be quick and must not call back into the
+ * Dictionary.
+ * 
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import org.json.JSONObject;
+
+public interface DictionaryListener {
+	/*
+	 * Called after a change has been made to the dictionary
+	 * 
+	 * @param version long version of the dictionary after the change
+	 * 
+	 * @param word String that was changed
+	 * 
+	 * @param definition JSONObject added to word, or null if word was deleted
+	 */
+	public void changed(long version, String word, JSONObject definition);
+}
@@ -0,0 +1,270 @@
+/*
+ * DictionaryRegistry.java
+ * 
+ * The dictionaries hosted by the server, selected by name. A dictionary is
+ * loaded the first time it is used, and saved and unloaded once it has been
+ * idle for a while, so that rarely used dictionaries do not hold memory.
+ * 
+ * Each name has its own slot, and loading, using and unloading a dictionary
+ * only lock its slot, so a slow load of a cold dictionary never holds up
+ * requests to the others. The default dictionary, read from the server's
+ * dictionary file at startup, is never unloaded.
+ * 
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
+
+public class DictionaryRegistry {
+	// names map straight to file names, so may not contain separators
+	private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+	// longest time between checks for idle dictionaries
+	private static final long MAX_EVICT_PERIOD = 60000;
+
+	private final HostedDictionary defaultDictionary;
+	private final Loader loader;
+	private final long idleTimeout;
+	private final int saveParallelism;
+	private final Map<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+	private final ScheduledExecutorService evictor;
+
+	private final LongAdder loads = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/*
+	 * Creates a new DictionaryRegistry, and starts unloading idle
+	 * dictionaries in the background
+	 * 
+	 * @param defaultDictionary HostedDictionary used when a request names
+	 * none, which is never unloaded
+	 * 
+	 * @param loader Loader to load other dictionaries by name, or null if
+	 * only the default dictionary is served
+	 * 
+	 * @param idleTimeout long milliseconds a dictionary must be unused for
+	 * before it is unloaded
+	 * 
+	 * @param saveParallelism int threads used to encode a dictionary when
+	 * saving it
+	 */
+	public DictionaryRegistry(HostedDictionary defaultDictionary,
+		Loader loader, long idleTimeout, int saveParallelism) {
+		this.defaultDictionary = defaultDictionary;
+		this.loader = loader;
+		this.idleTimeout = Math.max(0, idleTimeout);
+		this.saveParallelism = saveParallelism;
+
+		Slot slot = new Slot();
+		slot.hosted = defaultDictionary;
+		slots.put(defaultDictionary.getName(), slot);
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "dictionary-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1, Math.min(this.idleTimeout / 2,
+			MAX_EVICT_PERIOD));
+		evictor.scheduleWithFixedDelay(
+			this::evictIdle,
+			period,
+			period,
+			TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Returns true if name may be used to select a dictionary
+	 * 
+	 * @param name String name of a dictionary
+	 */
+	public static boolean isValidName(String name) {
+		return NAME.matcher(name).matches();
+	}
+
+	/*
+	 * Returns true if dictionaries other than the default may be loaded
+	 */
+	public boolean canLoad() {
+		return loader != null;
+	}
+
+	/*
+	 * Gets the dictionary named, loading it if needed, or the default
+	 * dictionary if name is null. Returns null if there is no such
+	 * dictionary. The dictionary must be released once the request is done
+	 * with it.
+	 * 
+	 * @param name String valid name of the dictionary, or null
+	 */
+	public HostedDictionary acquire(String name) throws IOException {
+		if (name == null) {
+			defaultDictionary.retain();
+			return defaultDictionary;
+		}
+
+		while (true) {
+			Slot slot = slots.computeIfAbsent(name, n -> new Slot());
+			synchronized (slot) {
+				if (slot.removed) {
+					// unloaded while waiting, so load it again
+					continue;
+				}
+
+				if (slot.hosted == null) {
+					HostedDictionary hosted = null;
+					try {
+						hosted = loader == null ? null : loader.load(name);
+					} finally {
+						if (hosted == null) {
+							slot.removed = true;
+							slots.remove(name, slot);
+						}
+					}
+					if (hosted == null) {
+						misses.increment();
+						return null;
+					}
+
+					slot.hosted = hosted;
+					loads.increment();
+					Log.info("Loaded dictionary", "name", name);
+				}
+
+				slot.hosted.retain();
+				return slot.hosted;
+			}
+		}
+	}
+
+	/*
+	 * Marks a request as finished with a dictionary it acquired
+	 * 
+	 * @param hosted HostedDictionary to release
+	 */
+	public void release(HostedDictionary hosted) {
+		hosted.release();
+	}
+
+	/*
+	 * Saves and unloads every dictionary that has been idle for the idle
+	 * timeout. A dictionary that cannot be saved stays loaded.
+	 */
+	private void evictIdle() {
+		for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+			try {
+				if (evict(entry.getKey(), entry.getValue())) {
+					evictions.increment();
+					Log.info("Unloaded idle dictionary", "name", entry.getKey());
+				}
+			} catch (RuntimeException re) {
+				// an exception would stop the evictor running again
+				Log.error("Could not unload dictionary", re, "name",
+					entry.getKey());
+			}
+		}
+	}
+
+	/*
+	 * Saves and unloads the dictionary in a slot if it is idle, returning
+	 * true if it was unloaded
+	 * 
+	 * @param name String name of the dictionary
+	 * 
+	 * @param slot Slot holding the dictionary
+	 */
+	private boolean evict(String name, Slot slot) {
+		synchronized (slot) {
+			HostedDictionary hosted = slot.hosted;
+			// requests acquire under the slot's lock, so none can start using
+			// the dictionary while it is saved
+			if (hosted == null || hosted == defaultDictionary
+				|| !hosted.isIdle(System.currentTimeMillis(), idleTimeout)
+				|| !hosted.save(saveParallelism)) {
+				return false;
+			}
+
+			hosted.unload();
+			slot.hosted = null;
+			slot.removed = true;
+			slots.remove(name, slot);
+			return true;
+		}
+	}
+
+	/*
+	 * Stops unloading dictionaries, then closes and saves every loaded
+	 * dictionary, so that no later change can be lost, and deletes its dumps
+	 */
+	public void saveAll() {
+		evictor.shutdown();
+		try {
+			evictor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+			/* saving anyway */
+		}
+
+		for (Slot slot : slots.values()) {
+			synchronized (slot) {
+				if (slot.hosted != null) {
+					slot.hosted.getDictionary().close();
+					slot.hosted.save(saveParallelism);
+					slot.hosted.getDumps().clear();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Creates a JSON Object describing each loaded dictionary, with the
+	 * registry's counters
+	 */
+	public JSONObject toJSON() {
+		JSONObject loaded = new JSONObject();
+		for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+			HostedDictionary hosted = entry.getValue().hosted;
+			if (hosted != null) {
+				loaded.put(entry.getKey(), hosted.toJSON());
+			}
+		}
+
+		return new JSONObject().put("loaded", loaded)
+			.put("default", defaultDictionary.getName())
+			.put("loads", loads.sum()).put("misses", misses.sum())
+			.put("evictions", evictions.sum());
+	}
+
+	/*
+	 * Loads a dictionary by name
+	 */
+	public interface Loader {
+		/*
+		 * Loads the dictionary named, returning null if there is no such
+		 * dictionary
+		 * 
+		 * @param name String valid name of the dictionary
+		 */
+		public HostedDictionary load(String name) throws IOException;
+	}
+
+	/*
+	 * Internal class for the dictionary loaded under a name, if any
+	 */
+	private static class Slot {
+		// guarded by this, but read unlocked for stats
+		private volatile HostedDictionary hosted = null;
+		// set once the slot has left the map, after which it is not used
+		private boolean removed = false;
+	}
+}
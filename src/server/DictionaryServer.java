@@ -3,20 +3,64 @@
  * 
  * Main class for the Dictionary Server. 
  * Accepts client requests and spans new threads per client, 
- * while maintaining the central dictionary
+ * while maintaining the central dictionary and any named dictionaries
  * 
  * @author James Barnes (820946)
  */
 
 package server;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import common.JSONConsts;
 
 public class DictionaryServer {
-	private static final int MAX_POOL_SIZE = 8;
+	private static final String MIN_POOL_PROPERTY = "dictionary.pool.min";
+	private static final String MAX_POOL_PROPERTY = "dictionary.pool.max";
+	private static final String MIN_WRITE_POOL_PROPERTY = "dictionary.pool.write.min";
+	private static final String MAX_WRITE_POOL_PROPERTY = "dictionary.pool.write.max";
+	private static final String WRITE_YIELD_PROPERTY = "dictionary.pool.write.yield";
+	private static final String DRAIN_PROPERTY = "dictionary.shutdown.timeout";
+	private static final String SAVE_PARALLELISM_PROPERTY = "dictionary.save.parallelism";
+	public static final String STORAGE_PROPERTY = "dictionary.storage";
+	private static final String RATE_PROPERTY = "dictionary.limit.rate";
+	private static final String BURST_PROPERTY = "dictionary.limit.burst";
+	private static final String CONCURRENCY_PROPERTY = "dictionary.limit.concurrency";
+	private static final String HOT_K_PROPERTY = "dictionary.hot.k";
+	private static final String HOT_WINDOW_PROPERTY = "dictionary.hot.window";
+	private static final int HOT_SUB_WINDOWS = 6;
+	private static final String COMPRESS_THRESHOLD_PROPERTY = "dictionary.compress.threshold";
+	private static final String COMPRESS_CACHE_PROPERTY = "dictionary.compress.cache";
+	private static final String READ_TIMEOUT_PROPERTY = "dictionary.read.timeout";
+	private static final String QUEUE_DEADLINE_PROPERTY = "dictionary.queue.deadline";
+	private static final String SYNC_LOG_PROPERTY = "dictionary.sync.log";
+	private static final String WATCH_MAX_PROPERTY = "dictionary.watch.max";
+	private static final String WATCH_BUFFER_PROPERTY = "dictionary.watch.buffer";
+	private static final String WATCH_TIMEOUT_PROPERTY = "dictionary.watch.timeout";
+	private static final String DIRECTORY_PROPERTY = "dictionary.dir";
+	private static final String IDLE_TIMEOUT_PROPERTY = "dictionary.idle.timeout";
+	private static final String DICTIONARY_SUFFIX = ".json";
+	private static final String DEFAULT_NAME = "default";
+	private static final int REJECT_QUEUE_SIZE = 1024;
+	private static final String DUMP_DIRECTORY_PROPERTY = "dictionary.dump.dir";
+	private static final String IMPORT_DIRECTORY_PROPERTY = "dictionary.import.dir";
 
 	public static void main(String[] args) {
 		if (args.length != 2) {
@@ -27,39 +71,152 @@ public class DictionaryServer {
 		String portString = args[0];
 		String dictionaryFile = args[1];
 
-		Dictionary dictionary = new Dictionary(dictionaryFile);
+		String storage = System.getProperty(STORAGE_PROPERTY,
+			DictionaryStore.COMPACT);
+		DictionaryStore store = null;
+		try {
+			store = DictionaryStore.forName(storage, dictionaryFile);
+		} catch (IllegalArgumentException iae) {
+			System.err.println(iae.getMessage());
+			System.exit(1);
+		}
+
+		// each server has its own dump directory, so that sweeping it cannot
+		// delete dumps another server is sending
+		Path dumpDirectory = Paths.get(
+			System.getProperty(
+				DUMP_DIRECTORY_PROPERTY,
+				Paths.get(
+					System.getProperty("java.io.tmpdir"),
+					"dictionary-dumps-" + portString).toString()));
+		try {
+			DumpCache.sweep(dumpDirectory);
+		} catch (IOException ioe) {
+			Log.error("Could not prepare the dump directory", ioe,
+				"directory", dumpDirectory.toString());
+		}
+
+		HostedDictionary defaultDictionary = host(
+			defaultName(dictionaryFile),
+			dictionaryFile,
+			new Dictionary(dictionaryFile, store),
+			dumpDirectory);
+
+		// named dictionaries are files in the directory set for them, read the
+		// first time they are used
+		Path directory = dictionaryDirectory();
+		DictionaryRegistry dictionaries = new DictionaryRegistry(
+			defaultDictionary, directory == null ? null : name -> {
+				Path file = directory.resolve(name + DICTIONARY_SUFFIX);
+				if (!Files.isRegularFile(file)) {
+					return null;
+				}
+
+				String filename = file.toString();
+				return host(
+					name,
+					filename,
+					Dictionary.open(
+						filename,
+						DictionaryStore.forName(storage, filename)),
+					dumpDirectory);
+			}, Long.getLong(IDLE_TIMEOUT_PROPERTY, 600000),
+			Integer.getInteger(
+				SAVE_PARALLELISM_PROPERTY,
+				Runtime.getRuntime().availableProcessors()));
+
+		AdmissionController admission = new AdmissionController(
+			getDouble(RATE_PROPERTY, 100),
+			Integer.getInteger(BURST_PROPERTY, 200),
+			Integer.getInteger(CONCURRENCY_PROPERTY, 512));
+		int hotK = Integer.getInteger(HOT_K_PROPERTY, 20);
+		// each sub-window must be at least 1 ms long
+		long hotWindow = Math.max(
+			HOT_SUB_WINDOWS,
+			Long.getLong(HOT_WINDOW_PROPERTY, 60000)) / HOT_SUB_WINDOWS;
 
-		WorkerThreadPool workers = new WorkerThreadPool(MAX_POOL_SIZE);
+		WorkerThreadPool workers = new WorkerThreadPool("worker",
+			Integer.getInteger(MIN_POOL_PROPERTY, 4),
+			Integer.getInteger(MAX_POOL_PROPERTY, 64),
+			Long.getLong(QUEUE_DEADLINE_PROPERTY, 5000));
+		// writes are serialised by the dictionary's lock, so few threads are
+		// needed, and each waits for queued reads to start before it runs
+		WorkerThreadPool writers = new WorkerThreadPool("writer",
+			Integer.getInteger(MIN_WRITE_POOL_PROPERTY, 1),
+			Integer.getInteger(MAX_WRITE_POOL_PROPERTY, 4),
+			Long.getLong(QUEUE_DEADLINE_PROPERTY, 5000), workers,
+			Long.getLong(WRITE_YIELD_PROPERTY, 50));
+		int readTimeout = Integer.getInteger(READ_TIMEOUT_PROPERTY, 5000);
+		// rejections are answered off the accept thread, so that a burst of
+		// them cannot hold up accepting; beyond the queue they are dropped
+		ExecutorService rejecter = new ThreadPoolExecutor(1, 1, 0,
+			TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(REJECT_QUEUE_SIZE), r -> {
+				Thread thread = new Thread(r, "rejecter");
+				thread.setDaemon(true);
+				return thread;
+			});
 
-		try (ServerSocket serverSocket = new ServerSocket(
-			Integer.parseInt(portString))) {
+		ServerContext context = new ServerContext(dictionaries, admission,
+			new HeavyHitters(hotK, HOT_SUB_WINDOWS, hotWindow),
+			new HeavyHitters(hotK, HOT_SUB_WINDOWS, hotWindow), workers,
+			writers, importDirectory());
 
-			// add hook to save dictionary on Ctrl-C
+		// sockets are accepted through a channel so that they support
+		// zero-copy transfers
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel
+				.bind(new InetSocketAddress(Integer.parseInt(portString)));
+
+			// add hook to drain requests and save dictionaries on Ctrl-C
 			Runtime.getRuntime().addShutdownHook(
-				new ShutdownThread(dictionaryFile, dictionary, workers));
+				new ShutdownThread(dictionaries, workers, writers,
+					serverChannel, Long.getLong(DRAIN_PROPERTY, 10000)));
 			System.out.println(
 				"Press Ctrl-C to quit and save the dictionary to file.");
 
 			System.out.println("Server is now running.");
 			System.out
 				.println("IP:\t" + InetAddress.getLocalHost().getHostAddress());
-			System.out.println("Port:\t" + serverSocket.getLocalPort());
+			System.out
+				.println("Port:\t" + serverChannel.socket().getLocalPort());
 			System.out.println("Waiting for new connections...");
 
 			while (true) {
 				try {
-					Socket clientSocket = serverSocket.accept();
-					System.out.format(
-						"Request from %s:%d\n",
-						clientSocket.getInetAddress().getHostAddress(),
-						clientSocket.getPort());
-
-					
-					workers.add(new RequestHandler(clientSocket, dictionary));
+					Socket clientSocket = serverChannel.accept().socket();
+					// a client that never sends its request cannot hold a
+					// worker for longer than this
+					clientSocket.setSoTimeout(readTimeout);
+					Log.debug(
+						"accepted",
+						"client",
+						clientSocket.getInetAddress().getHostAddress() + ":"
+							+ clientSocket.getPort());
+
+					switch (admission.admit(
+						clientSocket.getInetAddress().getHostAddress())) {
+					case ADMITTED:
+						if (!workers
+							.add(new RequestHandler(clientSocket, context))) {
+							admission.release();
+							clientSocket.close();
+						}
+						break;
+					case RATE_LIMITED:
+						rejectLater(rejecter, clientSocket,
+							JSONConsts.RATE_LIMITED);
+						break;
+					case OVERLOADED:
+						rejectLater(rejecter, clientSocket,
+							JSONConsts.SERVER_BUSY);
+						break;
+					}
+				} catch (ClosedChannelException cce) {
+					// the server is shutting down
+					break;
 				} catch (IOException e) {
-					System.err.println(
-						"There was an error accepting a request: "
-							+ e.getMessage());
+					Log.error("There was an error accepting a request", e);
 				}
 			}
 		} catch (NumberFormatException nfe) {
@@ -72,4 +229,162 @@ public class DictionaryServer {
 			System.exit(1);
 		}
 	}
+
+	/*
+	 * Hosts a dictionary, with the compressor, change log and watch hub
+	 * configured by the dictionary.* properties
+	 * 
+	 * @param name String the dictionary is selected by
+	 * 
+	 * @param filename String file the dictionary was read from
+	 * 
+	 * @param dictionary Dictionary to host
+	 * 
+	 * @param dumpDirectory Path of the directory to write dumps to
+	 */
+	private static HostedDictionary host(String name, String filename,
+		Dictionary dictionary, Path dumpDirectory) {
+		return new HostedDictionary(name, filename, dictionary, dumpDirectory,
+			new ResponseCompressor(
+				Integer.getInteger(COMPRESS_THRESHOLD_PROPERTY, 1024),
+				Integer.getInteger(COMPRESS_CACHE_PROPERTY, 1024)),
+			new ChangeLog(Integer.getInteger(SYNC_LOG_PROPERTY, 65536),
+				dictionary.getEpoch(), dictionary.getVersion()),
+			new WatchHub(Integer.getInteger(WATCH_MAX_PROPERTY, 256),
+				Integer.getInteger(WATCH_BUFFER_PROPERTY, 1024),
+				Long.getLong(WATCH_TIMEOUT_PROPERTY, 30000)));
+	}
+
+	/*
+	 * Gets the name of the default dictionary, its file name without the
+	 * suffix, so that naming it selects it rather than loading it again
+	 * 
+	 * @param filename String file the default dictionary is read from
+	 */
+	private static String defaultName(String filename) {
+		String name = Paths.get(filename).getFileName().toString();
+		if (name.endsWith(DICTIONARY_SUFFIX)) {
+			name = name.substring(0,
+				name.length() - DICTIONARY_SUFFIX.length());
+		}
+
+		return DictionaryRegistry.isValidName(name) ? name : DEFAULT_NAME;
+	}
+
+	/*
+	 * Gets the directory holding named dictionaries, or null if it is not
+	 * set, in which case only the default dictionary is served. It is never
+	 * assumed, as any file in it may be rewritten.
+	 */
+	private static Path dictionaryDirectory() {
+		String directory = System.getProperty(DIRECTORY_PROPERTY);
+		if (directory == null) {
+			return null;
+		}
+
+		try {
+			return Paths.get(directory).toRealPath();
+		} catch (IOException ioe) {
+			System.err.format(
+				"The dictionary directory cannot be used (%s), "
+					+ "named dictionaries are disabled.\n",
+				ioe.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * Gets the directory clients may import files from, or null if it is not
+	 * set, in which case only definitions sent inline may be imported
+	 */
+	private static Path importDirectory() {
+		String directory = System.getProperty(IMPORT_DIRECTORY_PROPERTY);
+		if (directory == null) {
+			return null;
+		}
+
+		try {
+			return Paths.get(directory).toRealPath();
+		} catch (IOException ioe) {
+			System.err.format(
+				"The import directory cannot be used (%s), "
+					+ "file imports are disabled.\n",
+				ioe.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * Gets a double system property, or def if it is unset or malformed, as
+	 * Integer.getInteger does for int properties
+	 * 
+	 * @param property String name of the property
+	 * 
+	 * @param def double default value
+	 */
+	private static double getDouble(String property, double def) {
+		String value = System.getProperty(property);
+		if (value == null) {
+			return def;
+		}
+
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException nfe) {
+			return def;
+		}
+	}
+
+	/*
+	 * Hands a request that was not admitted to rejecter to be answered, or
+	 * closes it unanswered if too many rejections are waiting
+	 * 
+	 * @param rejecter ExecutorService answering rejected requests
+	 * 
+	 * @param socket Socket to the rejected client
+	 * 
+	 * @param reason String content of the error response
+	 */
+	private static void rejectLater(ExecutorService rejecter, Socket socket,
+		String reason) {
+		try {
+			rejecter.execute(() -> reject(socket, reason));
+		} catch (RejectedExecutionException ree) {
+			try {
+				socket.close();
+			} catch (IOException ioe) {
+				/* ignored */
+			}
+		}
+	}
+
+	/*
+	 * Sends an error response to a client whose request was not admitted,
+	 * without reading the request
+	 * 
+	 * @param socket Socket to the rejected client
+	 * 
+	 * @param reason String content of the error response
+	 */
+	static void reject(Socket socket, String reason) {
+		try (DataOutputStream dos = new DataOutputStream(
+			socket.getOutputStream())) {
+			// discard any request already received, as closing with unread
+			// data resets the connection and the response may be lost
+			InputStream is = socket.getInputStream();
+			is.skip(is.available());
+			dos.writeUTF(
+				new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_ERROR)
+					.put(JSONConsts.CONTENT, reason).toString());
+		} catch (IOException ioe) {
+			Log.debug("Could not reject request", "error", ioe.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ioe) {
+				/* ignored */
+			}
+		}
+	}
 }
@@ -0,0 +1,186 @@
+/*
+ * DictionaryStore.java
+ * 
+ * Storage engine behind a Dictionary. 
+ * Implementations need not be thread-safe, as the Dictionary serialises access.
+ * 
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public interface DictionaryStore {
+	public static final String JSON = "json";
+	public static final String OFF_HEAP = "offheap";
+	public static final String COMPACT = "compact";
+	public static final String LSM = "lsm";
+
+	/*
+	 * Creates an empty DictionaryStore of the named type
+	 * 
+	 * @param type String name of the storage engine
+	 * 
+	 * @param filename String dictionary file, next to which persistent
+	 * stores keep their own files
+	 */
+	public static DictionaryStore forName(String type, String filename) {
+		switch (type) {
+		case LSM:
+			return new LsmStore(Paths.get(filename + ".lsm"));
+		case JSON:
+			return new JSONStore();
+		case OFF_HEAP:
+			return new OffHeapStore();
+		case COMPACT:
+			return new CompactStore();
+		default:
+			throw new IllegalArgumentException(
+				String.format("Unknown dictionary storage \"%s\"", type));
+		}
+	}
+
+	/*
+	 * Replaces the contents of the store with the words in json, returning
+	 * the number of values skipped because they are not definitions
+	 * 
+	 * @param json JSONObject mapping words to arrays of definitions
+	 */
+	public int load(JSONObject json);
+
+	/*
+	 * Gets the definitions of word, or null if word is not stored
+	 * 
+	 * @param word String to get definitions of
+	 */
+	public JSONArray getDefinitions(String word);
+
+	/*
+	 * Adds a definition to word, returning true if the word was already stored
+	 * 
+	 * @param word String word to add definition to
+	 * 
+	 * @param definition JSONObject containing the definition
+	 */
+	public boolean addDefinition(String word, JSONObject definition);
+
+	/*
+	 * Deletes a word and its definitions, returning true if it was stored
+	 * 
+	 * @param word String to delete
+	 */
+	public boolean deleteWord(String word);
+
+	/*
+	 * Gets the number of words stored
+	 */
+	public int size();
+
+	/*
+	 * Returns the contents of the store as a JSONObject
+	 */
+	public JSONObject toJSON();
+
+	/*
+	 * Returns a point-in-time view of the store, which stays unchanged as the
+	 * store is modified and may be read without holding the Dictionary's lock
+	 */
+	public Snapshot snapshot();
+
+	/*
+	 * Returns true if snapshot is cheap and may be called without holding the
+	 * Dictionary's lock, letting readers bypass the lock entirely
+	 */
+	public default boolean isVersioned() {
+		return false;
+	}
+
+	/*
+	 * Returns true if the store keeps its contents in its own files, rather
+	 * than being saved to the dictionary file
+	 */
+	public default boolean isPersistent() {
+		return false;
+	}
+
+	/*
+	 * Restores a persistent store from its own files, returning false if it
+	 * has none, in which case it is loaded from the dictionary file instead
+	 */
+	public default boolean recover() throws IOException {
+		return false;
+	}
+
+	/*
+	 * Writes every change made so far to a persistent store's files
+	 */
+	public default void sync() throws IOException {
+	}
+
+	/*
+	 * Stops any background work of the store, which is no longer used. A
+	 * persistent store must be synced first to keep its latest changes.
+	 */
+	public default void close() {
+	}
+
+	/*
+	 * A point-in-time view of a DictionaryStore, iterating over each word and
+	 * its definitions
+	 */
+	public interface Snapshot extends Iterable<Map.Entry<String, JSONArray>> {
+		/*
+		 * Gets the number of words in the snapshot
+		 */
+		public int size();
+
+		/*
+		 * Gets the definitions of word in the snapshot, or null if word is
+		 * not in it
+		 *
+		 * @param word String to get definitions of
+		 */
+		public JSONArray getDefinitions(String word);
+
+		/*
+		 * Gets the number of definitions word has in the snapshot
+		 *
+		 * @param word String to count the definitions of
+		 */
+		public default int countDefinitions(String word) {
+			JSONArray definitions = getDefinitions(word);
+			return definitions == null ? 0 : definitions.length();
+		}
+
+		/*
+		 * Gets up to limit definitions of word, starting from offset. Stores
+		 * should override this to build only the definitions in the range.
+		 *
+		 * @param word String to get definitions of
+		 *
+		 * @param offset int index of the first definition to get
+		 *
+		 * @param limit int maximum number of definitions to get
+		 */
+		public default JSONArray getDefinitions(String word, int offset,
+			int limit) {
+			JSONArray definitions = getDefinitions(word);
+			JSONArray range = new JSONArray();
+			if (definitions != null) {
+				int end = (int) Math
+					.min(definitions.length(), (long) offset + limit);
+				for (int i = offset; i < end; i++) {
+					range.put(definitions.get(i));
+				}
+			}
+
+			return range;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * DumpCache.java
+ * 
+ * Keeps the most recent point-in-time dump of a Dictionary in a temporary
+ * file, so exports can be streamed straight from disk. A new dump is only
+ * written when the dictionary has changed since the last one.
+ * 
+ * Dumps are written to a directory of the server's own, and each is deleted
+ * as soon as it is superseded and no longer being read. Dumps left behind
+ * by a server that did not shut down cleanly are swept when it restarts.
+ * 
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class DumpCache {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final String PREFIX = "dump-";
+	private static final String SUFFIX = ".json";
+
+	private final Dictionary dictionary;
+	private final Path directory;
+
+	private Dump current = null;
+
+	/*
+	 * Creates a new DumpCache
+	 * 
+	 * @param dictionary Dictionary to dump
+	 * 
+	 * @param directory Path of the directory to write dumps to, which must
+	 * exist
+	 */
+	public DumpCache(Dictionary dictionary, Path directory) {
+		this.dictionary = dictionary;
+		this.directory = directory;
+	}
+
+	/*
+	 * Creates the directory dumps are written to, deleting any dumps left in
+	 * it by an earlier run
+	 * 
+	 * @param directory Path of the directory to prepare
+	 */
+	public static void sweep(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> stale = Files
+			.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path file : stale) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	/*
+	 * Gets an up to date dump of the dictionary, writing one if needed. The
+	 * Dump must be released once it has been read.
+	 */
+	public synchronized Dump acquire() throws IOException {
+		if (current == null || current.version != dictionary.getVersion()) {
+			Path file = Files.createTempFile(directory, PREFIX, SUFFIX);
+			long version = 0;
+			try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(Files.newOutputStream(file),
+					StandardCharsets.UTF_8),
+				BUFFER_SIZE)) {
+				version = dictionary.writeJSON(writer);
+			} catch (IOException ioe) {
+				Files.deleteIfExists(file);
+				throw ioe;
+			}
+
+			clear();
+			current = new Dump(file, version);
+			Log.debug("Wrote dictionary dump", "version", version);
+		}
+
+		current.retain();
+		return current;
+	}
+
+	/*
+	 * Drops the cached dump, deleting it once it is no longer being read
+	 */
+	public synchronized void clear() {
+		if (current != null) {
+			current.release();
+			current = null;
+		}
+	}
+
+	/*
+	 * A dump of the dictionary, deleted when its last reader releases it
+	 */
+	public static class Dump {
+		private final Path file;
+		private final long version;
+
+		// the cache holds a reference until the dump is replaced
+		private int references = 1;
+
+		private Dump(Path file, long version) {
+			this.file = file;
+			this.version = version;
+		}
+
+		public Path getFile() {
+			return file;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		private synchronized void retain() {
+			references++;
+		}
+
+		/*
+		 * Releases the dump, deleting its file if it is no longer needed
+		 */
+		public synchronized void release() {
+			if (--references == 0) {
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException ioe) {
+					Log.warn("Could not delete dump", "file", file.toString());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * HeavyHitters.java
+ *
+ * Tracks the most frequent keys in a stream over a sliding window, in
+ * bounded memory. The window is split into a ring of sub-windows, each with
+ * a count-min sketch estimating every key's count and a small set of the
+ * keys with the highest estimates. Recording a key is lock-free unless it
+ * newly enters a sub-window's top set.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import common.JSONConsts;
+
+public class HeavyHitters {
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 1 << 10;
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35,
+		0x27D4EB2F };
+
+	private final int k;
+	private final long windowMillis;
+	private final AtomicReferenceArray<Window> windows;
+
+	/*
+	 * Creates a new HeavyHitters
+	 *
+	 * @param k int number of keys to report
+	 *
+	 * @param windows int number of sub-windows making up the sliding window
+	 *
+	 * @param windowMillis long length of each sub-window in milliseconds,
+	 * at least 1
+	 */
+	public HeavyHitters(int k, int windows, long windowMillis) {
+		this.k = k;
+		this.windowMillis = Math.max(1, windowMillis);
+		this.windows = new AtomicReferenceArray<Window>(Math.max(1, windows));
+	}
+
+	/*
+	 * Records an occurrence of key
+	 *
+	 * @param key String to record
+	 */
+	public void record(String key) {
+		if (key == null || key.isEmpty()) {
+			return;
+		}
+
+		long epoch = System.currentTimeMillis() / windowMillis;
+		int slot = (int) (epoch % windows.length());
+
+		Window window = windows.get(slot);
+		if (window == null || window.epoch != epoch) {
+			Window fresh = new Window(epoch, k);
+			// another thread may have rotated the window first
+			window = windows.compareAndSet(slot, window, fresh) ? fresh
+				: windows.get(slot);
+			if (window.epoch != epoch) {
+				return;
+			}
+		}
+
+		window.add(key);
+	}
+
+	/*
+	 * Returns the top keys over the sliding window, most frequent first, as
+	 * [{"word", "count"}]
+	 */
+	public JSONArray top() {
+		long epoch = System.currentTimeMillis() / windowMillis;
+
+		List<Window> live = new ArrayList<Window>();
+		for (int i = 0; i < windows.length(); i++) {
+			Window window = windows.get(i);
+			if (window != null && epoch - window.epoch < windows.length()) {
+				live.add(window);
+			}
+		}
+
+		Map<String, Long> counts = new HashMap<String, Long>();
+		for (Window window : live) {
+			for (String key : window.candidates.keySet()) {
+				if (!counts.containsKey(key)) {
+					long count = 0;
+					for (Window w : live) {
+						count += w.estimate(key);
+					}
+					counts.put(key, count);
+				}
+			}
+		}
+
+		List<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(
+			counts.entrySet());
+		sorted.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+		JSONArray top = new JSONArray();
+		for (Map.Entry<String, Long> entry : sorted.subList(
+			0,
+			Math.min(k, sorted.size()))) {
+			top.put(
+				new JSONObject().put(JSONConsts.WORD, entry.getKey())
+					.put("count", entry.getValue()));
+		}
+
+		return top;
+	}
+
+	/*
+	 * Gets the length of the sliding window in milliseconds
+	 */
+	public long getWindowMillis() {
+		return windowMillis * windows.length();
+	}
+
+	/*
+	 * Gets the sketch cell of key in a row. Each row combines String's hash
+	 * with a second, independent hash, so that keys whose hashCodes collide
+	 * are not counted together in every row.
+	 *
+	 * @param hash int String.hashCode of the key
+	 *
+	 * @param second int secondHash of the key
+	 *
+	 * @param row int row of the sketch
+	 */
+	private static int index(int hash, int second, int row) {
+		int h = (hash + row * second) * SEEDS[row];
+		return row * WIDTH + ((h ^ (h >>> 16)) & (WIDTH - 1));
+	}
+
+	/*
+	 * Hashes key with 64-bit FNV-1a, independently of String.hashCode
+	 *
+	 * @param key String to hash
+	 */
+	private static int secondHash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h = (h ^ key.charAt(i)) * 0x100000001b3L;
+		}
+
+		// odd, so that every row steps to a different cell
+		return (int) (h ^ (h >>> 32)) | 1;
+	}
+
+	/*
+	 * Internal class counting keys during one sub-window
+	 */
+	private static class Window {
+		private final long epoch;
+		private final int capacity;
+		private final AtomicLongArray sketch = new AtomicLongArray(
+			DEPTH * WIDTH);
+		private final Map<String, Long> candidates = new ConcurrentHashMap<String, Long>();
+
+		// lowest estimate among the candidates once full
+		private volatile long threshold = 0;
+
+		private Window(long epoch, int k) {
+			this.epoch = epoch;
+			// track extra candidates so keys near the cut-off are not lost
+			this.capacity = 2 * k;
+		}
+
+		private void add(String key) {
+			int hash = key.hashCode();
+			int second = secondHash(key);
+			long estimate = Long.MAX_VALUE;
+			for (int row = 0; row < DEPTH; row++) {
+				estimate = Math.min(
+					estimate,
+					sketch.incrementAndGet(index(hash, second, row)));
+			}
+
+			// updated atomically, so that a candidate evicted meanwhile is
+			// not put back past the capacity
+			long count = estimate;
+			if (candidates.computeIfPresent(key, (c, old) -> count) == null
+				&& count > threshold) {
+				admit(key, count);
+			}
+		}
+
+		private synchronized void admit(String key, long estimate) {
+			// merged, in case add updated the key since it was found absent
+			candidates.merge(key, estimate, Math::max);
+			if (candidates.size() <= capacity) {
+				return;
+			}
+
+			String lowest = null;
+			long lowestCount = Long.MAX_VALUE;
+			for (Map.Entry<String, Long> entry : candidates.entrySet()) {
+				if (entry.getValue() < lowestCount) {
+					lowest = entry.getKey();
+					lowestCount = entry.getValue();
+				}
+			}
+			candidates.remove(lowest);
+			threshold = lowestCount;
+		}
+
+		private long estimate(String key) {
+			int hash = key.hashCode();
+			int second = secondHash(key);
+			long estimate = Long.MAX_VALUE;
+			for (int row = 0; row < DEPTH; row++) {
+				estimate = Math
+					.min(estimate, sketch.get(index(hash, second, row)));
+			}
+
+			return estimate;
+		}
+	}
+}
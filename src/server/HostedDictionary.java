@@ -0,0 +1,212 @@
+/*
+ * HostedDictionary.java
+ * 
+ * A Dictionary hosted by the server under a name, along with the state kept
+ * for it: its dumps, compressed responses, recent changes and watchers. Each
+ * has its own lock and its own file, so requests to one never wait on
+ * another. It counts the requests using it and when it was last used, so
+ * that it can be unloaded once idle.
+ * 
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import common.JSONConsts;
+
+public class HostedDictionary {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final String name;
+	private final String filename;
+	private final Dictionary dictionary;
+	private final DumpCache dumps;
+	private final ResponseCompressor compressor;
+	private final ChangeLog changes;
+	private final WatchHub watchers;
+
+	private final AtomicInteger active = new AtomicInteger();
+	private volatile long lastUsed = System.currentTimeMillis();
+	// version the file last held, which need not be written again
+	private long savedVersion;
+
+	/*
+	 * Creates a new HostedDictionary
+	 * 
+	 * @param name String the dictionary is selected by
+	 * 
+	 * @param filename String file the dictionary was read from and is saved to
+	 * 
+	 * @param dictionary Dictionary served to clients
+	 * 
+	 * @param dumpDirectory Path of the directory to write dumps to
+	 * 
+	 * @param compressor ResponseCompressor for clients asking for compression,
+	 * registered here as a listener of dictionary
+	 * 
+	 * @param changes ChangeLog of recent changes for replicas to sync from,
+	 * registered here as a listener of dictionary
+	 * 
+	 * @param watchers WatchHub pushing changes to watching clients,
+	 * registered here as a listener of dictionary
+	 */
+	public HostedDictionary(String name, String filename,
+		Dictionary dictionary, Path dumpDirectory,
+		ResponseCompressor compressor, ChangeLog changes, WatchHub watchers) {
+		this.name = name;
+		this.filename = filename;
+		this.dictionary = dictionary;
+		this.dumps = new DumpCache(dictionary, dumpDirectory);
+		this.compressor = compressor;
+		this.changes = changes;
+		this.watchers = watchers;
+		this.savedVersion = dictionary.getVersion();
+		dictionary.addListener(compressor);
+		dictionary.addListener(changes);
+		dictionary.addListener(watchers);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Dictionary getDictionary() {
+		return dictionary;
+	}
+
+	public DumpCache getDumps() {
+		return dumps;
+	}
+
+	public ResponseCompressor getCompressor() {
+		return compressor;
+	}
+
+	public ChangeLog getChanges() {
+		return changes;
+	}
+
+	public WatchHub getWatchers() {
+		return watchers;
+	}
+
+	/*
+	 * Marks the dictionary as used by a request, until it is released
+	 */
+	void retain() {
+		active.incrementAndGet();
+	}
+
+	/*
+	 * Marks a request as finished with the dictionary
+	 */
+	void release() {
+		lastUsed = System.currentTimeMillis();
+		active.decrementAndGet();
+	}
+
+	/*
+	 * Returns true if no request or watcher has used the dictionary for at
+	 * least idleMillis
+	 * 
+	 * @param now long current time in milliseconds
+	 * 
+	 * @param idleMillis long milliseconds the dictionary must be unused for
+	 */
+	boolean isIdle(long now, long idleMillis) {
+		return active.get() == 0 && watchers.getSubscribers() == 0
+			&& now - lastUsed >= idleMillis;
+	}
+
+	/*
+	 * Saves the dictionary if it has changed since it was loaded or last
+	 * saved, syncing a persistent store, otherwise writing it to a temporary
+	 * file then moving it over the dictionary file. Returns false if it could
+	 * not be saved.
+	 * 
+	 * @param parallelism int threads used to encode the dictionary
+	 */
+	public synchronized boolean save(int parallelism) {
+		long version = dictionary.getVersion();
+		if (version == savedVersion) {
+			return true;
+		}
+
+		if (dictionary.isPersistent()) {
+			try {
+				dictionary.sync();
+				savedVersion = version;
+				Log.info("Dictionary storage synced", "name", name);
+				return true;
+			} catch (IOException ioe) {
+				Log.error("There was an error syncing the dictionary", ioe,
+					"name", name);
+				return false;
+			}
+		}
+
+		Path target = Paths.get(filename);
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		try {
+			try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(Files.newOutputStream(temp),
+					StandardCharsets.UTF_8),
+				BUFFER_SIZE)) {
+				dictionary.writeJSON(writer, parallelism);
+			}
+
+			// replace the old file only once the new one is complete
+			try {
+				Files.move(
+					temp,
+					target,
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException amnse) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			savedVersion = version;
+			Log.info("Dictionary saved to file", "name", name, "file",
+				filename);
+			return true;
+		} catch (IOException ioe) {
+			Log.error("There was an error saving the dictionary file", ioe,
+				"name", name, "file", filename);
+			return false;
+		}
+	}
+
+	/*
+	 * Frees the dictionary and its dumps once it has been saved and is no
+	 * longer used
+	 */
+	public void unload() {
+		dictionary.dispose();
+		dumps.clear();
+	}
+
+	/*
+	 * Creates a JSON Object describing the dictionary and its use
+	 */
+	public JSONObject toJSON() {
+		return new JSONObject().put("words", dictionary.size())
+			.put(JSONConsts.VERSION, dictionary.getVersion())
+			.put("active", active.get())
+			.put("watchers", watchers.getSubscribers())
+			.put("idle_millis", System.currentTimeMillis() - lastUsed);
+	}
+}
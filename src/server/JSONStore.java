@@ -0,0 +1,82 @@
+/*
+ * JSONStore.java
+ * 
+ * DictionaryStore which keeps the dictionary as a single JSONObject.
+ * It is not versioned, so snapshots copy the whole index.
+ * 
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class JSONStore implements DictionaryStore {
+	private JSONObject dictionary = new JSONObject();
+
+	@Override
+	public int load(JSONObject json) {
+		// values are kept as they are, so nothing is skipped
+		dictionary = json;
+		return 0;
+	}
+
+	@Override
+	public JSONArray getDefinitions(String word) {
+		return dictionary.optJSONArray(word);
+	}
+
+	@Override
+	public boolean addDefinition(String word, JSONObject definition) {
+		JSONArray definitions = dictionary.optJSONArray(word);
+		boolean isNew = dictionary.has(word);
+
+		List<Object> newDefinitions = definitions == null
+			? new ArrayList<Object>()
+			: definitions.toList();
+		newDefinitions.add(definition);
+		dictionary.put(word, new JSONArray(newDefinitions));
+
+		return isNew;
+	}
+
+	@Override
+	public boolean deleteWord(String word) {
+		return dictionary.remove(word) != null;
+	}
+
+	@Override
+	public int size() {
+		return dictionary.length();
+	}
+
+	@Override
+	public JSONObject toJSON() {
+		return dictionary;
+	}
+
+	@Override
+	public Snapshot snapshot() {
+		// definition arrays are replaced rather than modified, so sharing them
+		// is safe
+		Map<String, JSONArray> words = new HashMap<String, JSONArray>();
+		for (String word : dictionary.keySet()) {
+			Object value = dictionary.get(word);
+			words.put(
+				word,
+				value instanceof JSONArray ? (JSONArray) value
+					: new JSONArray().put(value));
+		}
+
+		// copy so the caller cannot modify the stored arrays
+		return new MapSnapshot<JSONArray>(
+			words,
+			definitions -> new JSONArray(definitions.toList()));
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Log.java
+ *
+ * Asynchronous logger for the server. Callers only publish an event into a
+ * lock-free ring buffer; a background thread formats each event as a single
+ * line of JSON and writes it to the console. Access logs are rate limited
+ * per second, and events are dropped (and counted) if the buffer is full.
+ *
+ * Configured with the system properties dictionary.log.level,
+ * dictionary.log.access.rate and dictionary.log.buffer.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+
+public class Log {
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	private static final String ACCESS = "access";
+	private static final long IDLE_PARK_NANOS = 5_000_000L;
+	private static final long CLOSE_TIMEOUT = 2000;
+
+	private static final Level level = parseLevel(
+		System.getProperty("dictionary.log.level", Level.INFO.name()));
+	private static final int accessRate = Integer
+		.getInteger("dictionary.log.access.rate", 1000);
+
+	private static final RingBuffer buffer = new RingBuffer(
+		Integer.getInteger("dictionary.log.buffer", 1 << 14));
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final AtomicLong sampledOut = new AtomicLong();
+	private static final AtomicLong accessWindow = new AtomicLong();
+	private static final AtomicLong accessCount = new AtomicLong();
+
+	private static final Writer writer = new Writer();
+
+	static {
+		writer.start();
+	}
+
+	private Log() {
+	}
+
+	public static void debug(String message, Object... fields) {
+		log(Level.DEBUG, message, null, fields);
+	}
+
+	public static void info(String message, Object... fields) {
+		log(Level.INFO, message, null, fields);
+	}
+
+	public static void warn(String message, Object... fields) {
+		log(Level.WARN, message, null, fields);
+	}
+
+	public static void error(String message, Throwable t, Object... fields) {
+		log(Level.ERROR, message, t, fields);
+	}
+
+	/*
+	 * Logs a serviced request, subject to the per-second access log limit
+	 *
+	 * @param fields Object[] alternating field names and values
+	 */
+	public static void access(Object... fields) {
+		if (!isEnabled(Level.INFO)) {
+			return;
+		}
+
+		long second = System.currentTimeMillis() / 1000;
+		long window = accessWindow.get();
+		if (window != second && accessWindow.compareAndSet(window, second)) {
+			accessCount.set(0);
+		}
+		if (accessCount.incrementAndGet() > accessRate) {
+			sampledOut.incrementAndGet();
+			return;
+		}
+
+		log(Level.INFO, ACCESS, null, fields);
+	}
+
+	/*
+	 * Parses a log level, falling back to INFO if it is not one
+	 *
+	 * @param name String name of the level, in any case
+	 */
+	private static Level parseLevel(String name) {
+		try {
+			return Level.valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException iae) {
+			// the logger is not running yet, so this goes straight out
+			System.err.format(
+				"Unknown log level \"%s\", logging at %s instead.\n",
+				name,
+				Level.INFO);
+			return Level.INFO;
+		}
+	}
+
+	public static boolean isEnabled(Level l) {
+		return l.compareTo(level) >= 0;
+	}
+
+	/*
+	 * Writes out all buffered events and stops the writer thread
+	 */
+	public static void close() {
+		writer.closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void log(Level l, String message, Throwable t,
+		Object[] fields) {
+		if (!isEnabled(l)) {
+			return;
+		}
+
+		Event event = new Event(l, Thread.currentThread().getName(), message,
+			t, fields);
+		if (!buffer.offer(event)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/*
+	 * Internal class holding an unformatted log event
+	 */
+	private static class Event {
+		private final long time = System.currentTimeMillis();
+		private final Level level;
+		private final String thread;
+		private final String message;
+		private final Throwable throwable;
+		private final Object[] fields;
+
+		private Event(Level level, String thread, String message,
+			Throwable throwable, Object[] fields) {
+			this.level = level;
+			this.thread = thread;
+			this.message = message;
+			this.throwable = throwable;
+			this.fields = fields;
+		}
+
+		private String format() {
+			JSONObject json = new JSONObject();
+			json.put("time", Instant.ofEpochMilli(time).toString())
+				.put("level", level.name()).put("thread", thread)
+				.put("message", message);
+			for (int i = 0; i + 1 < fields.length; i += 2) {
+				json.put(String.valueOf(fields[i]), fields[i + 1]);
+			}
+			if (throwable != null) {
+				StringWriter trace = new StringWriter();
+				throwable.printStackTrace(new PrintWriter(trace));
+				json.put("error", String.valueOf(throwable.getMessage()))
+					.put("trace", trace.toString());
+			}
+
+			long lost = dropped.getAndSet(0);
+			if (lost > 0) {
+				json.put("dropped", lost);
+			}
+			if (ACCESS.equals(message)) {
+				long sampled = sampledOut.getAndSet(0);
+				if (sampled > 0) {
+					json.put("sampled_out", sampled);
+				}
+			}
+
+			return json.toString();
+		}
+	}
+
+	/*
+	 * Internal class draining the ring buffer to the console
+	 */
+	private static class Writer extends Thread {
+		private volatile boolean closed = false;
+
+		private Writer() {
+			super("log-writer");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Event event = buffer.poll();
+				if (event != null) {
+					(event.level.compareTo(Level.WARN) >= 0 ? System.err
+						: System.out).println(event.format());
+				} else if (closed) {
+					break;
+				} else {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Internal class implementing a bounded, lock-free multi-producer
+	 * single-consumer ring buffer. Each slot carries a sequence number telling
+	 * producers and the consumer whose turn it is.
+	 */
+	private static class RingBuffer {
+		private final int mask;
+		private final AtomicReferenceArray<Event> slots;
+		private final AtomicLongArray sequences;
+		private final AtomicLong tail = new AtomicLong();
+		private long head = 0;
+
+		private RingBuffer(int capacity) {
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			mask = size - 1;
+			slots = new AtomicReferenceArray<Event>(size);
+			sequences = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++) {
+				sequences.set(i, i);
+			}
+		}
+
+		private boolean offer(Event event) {
+			while (true) {
+				long position = tail.get();
+				int slot = (int) position & mask;
+				long difference = sequences.get(slot) - position;
+				if (difference == 0) {
+					if (tail.compareAndSet(position, position + 1)) {
+						slots.lazySet(slot, event);
+						sequences.set(slot, position + 1);
+						return true;
+					}
+				} else if (difference < 0) {
+					return false;
+				}
+			}
+		}
+
+		private Event poll() {
+			int slot = (int) head & mask;
+			if (sequences.get(slot) != head + 1) {
+				return null;
+			}
+
+			Event event = slots.get(slot);
+			slots.lazySet(slot, null);
+			sequences.set(slot, head + mask + 1);
+			head++;
+
+			return event;
+		}
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * LsmSegment.java
+ *
+ * An immutable, sorted segment file of an LsmStore, mapping words to values
+ * the store encodes, or to a tombstone for deleted words.
+ *
+ * The file holds the records in key order, then a sparse index of every
+ * INDEX_INTERVAL-th key, then a Bloom filter of every key, then a footer:
+ * | records | index | bloom filter | index offset | filter offset | count | magic |
+ *
+ * The index and filter are kept on the heap, while the records are memory
+ * mapped, so a lookup is a filter check, a binary search and a short scan of
+ * the page cache. The mapping stays valid after the file is deleted, so
+ * readers holding an old segment are unaffected by compaction. A mapping is
+ * addressed by int, so segments are kept under 2 GiB by writing at most
+ * MAX_BYTES of records to each.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+public class LsmSegment {
+	// value of deleted words, compared by reference
+	public static final byte[] TOMBSTONE = new byte[0];
+	// records written to a segment at most, beyond the one that passes it
+	public static final long MAX_BYTES = 1L << 30;
+
+	private static final int MAGIC = 0x4C534D31;
+	private static final int FOOTER_SIZE = 24;
+	private static final int INDEX_INTERVAL = 16;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Path file;
+	private final ByteBuffer records;
+	private final String[] indexKeys;
+	private final int[] indexOffsets;
+	private final BloomFilter filter;
+	private final int count;
+
+	private LsmSegment(Path file, ByteBuffer records, String[] indexKeys,
+		int[] indexOffsets, BloomFilter filter, int count) {
+		this.file = file;
+		this.records = records;
+		this.indexKeys = indexKeys;
+		this.indexOffsets = indexOffsets;
+		this.filter = filter;
+		this.count = count;
+	}
+
+	/*
+	 * Writes entries, which must be in key order, to a new segment file and
+	 * opens it. Writing stops after the entry that takes the records past
+	 * MAX_BYTES, leaving the rest of entries for another segment. The file
+	 * is deleted if it cannot be written.
+	 *
+	 * @param file Path of the segment file to create
+	 *
+	 * @param entries Iterator over the words and their values
+	 *
+	 * @param expected int number of entries expected, used to size the
+	 * Bloom filter
+	 */
+	public static LsmSegment write(Path file,
+		Iterator<Map.Entry<String, byte[]>> entries, int expected)
+		throws IOException {
+		try {
+			writeFile(file, entries, expected);
+			return open(file);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+	private static void writeFile(Path file,
+		Iterator<Map.Entry<String, byte[]>> entries, int expected)
+		throws IOException {
+		BloomFilter filter = new BloomFilter(expected);
+		List<String> indexKeys = new ArrayList<String>();
+		List<Integer> indexOffsets = new ArrayList<Integer>();
+		int count = 0;
+
+		try (FileOutputStream fos = new FileOutputStream(file.toFile());
+			DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(fos, BUFFER_SIZE))) {
+			while (entries.hasNext() && out.size() < MAX_BYTES) {
+				Map.Entry<String, byte[]> entry = entries.next();
+				if (count % INDEX_INTERVAL == 0) {
+					indexKeys.add(entry.getKey());
+					indexOffsets.add(out.size());
+				}
+				filter.add(entry.getKey());
+
+				byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				out.writeInt(key.length);
+				out.write(key);
+				byte[] value = entry.getValue();
+				if (value == TOMBSTONE) {
+					out.writeInt(-1);
+				} else {
+					out.writeInt(value.length);
+					out.write(value);
+				}
+				count++;
+			}
+
+			long indexOffset = out.size();
+			out.writeInt(indexKeys.size());
+			for (int i = 0; i < indexKeys.size(); i++) {
+				byte[] key = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeInt(indexOffsets.get(i));
+			}
+
+			long filterOffset = out.size();
+			filter.writeTo(out);
+
+			out.writeLong(indexOffset);
+			out.writeLong(filterOffset);
+			out.writeInt(count);
+			out.writeInt(MAGIC);
+			out.flush();
+			fos.getFD().sync();
+		}
+	}
+
+	/*
+	 * Opens an existing segment file
+	 *
+	 * @param file Path of the segment file
+	 */
+	public static LsmSegment open(Path file) throws IOException {
+		MappedByteBuffer mapped;
+		try (FileChannel channel = FileChannel
+			.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Segment file too large " + file);
+			}
+			mapped = channel
+				.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		if (mapped.capacity() < FOOTER_SIZE
+			|| mapped.getInt(mapped.capacity() - 4) != MAGIC) {
+			throw new IOException("Corrupt segment file " + file);
+		}
+		int footer = mapped.capacity() - FOOTER_SIZE;
+		long indexOffset = mapped.getLong(footer);
+		long filterOffset = mapped.getLong(footer + 8);
+		int count = mapped.getInt(footer + 16);
+		if (indexOffset < 0 || indexOffset > filterOffset
+			|| filterOffset > footer) {
+			throw new IOException("Corrupt segment file " + file);
+		}
+
+		ByteBuffer buffer = mapped.duplicate();
+		buffer.position((int) indexOffset);
+		String[] indexKeys = new String[buffer.getInt()];
+		int[] indexOffsets = new int[indexKeys.length];
+		for (int i = 0; i < indexKeys.length; i++) {
+			indexKeys[i] = readString(buffer);
+			indexOffsets[i] = buffer.getInt();
+		}
+
+		buffer.position((int) filterOffset);
+		BloomFilter filter = BloomFilter.readFrom(buffer);
+
+		ByteBuffer records = mapped.duplicate();
+		records.limit((int) indexOffset);
+
+		return new LsmSegment(file, records.slice(), indexKeys, indexOffsets,
+			filter, count);
+	}
+
+	/*
+	 * Gets the stored value of word: its definitions as UTF-8 JSON,
+	 * TOMBSTONE if it was deleted, or null if this segment does not have it
+	 *
+	 * @param word String to look up
+	 */
+	public byte[] get(String word) {
+		if (!filter.mightContain(word)) {
+			return null;
+		}
+
+		// the last indexed key not after word starts the run holding it
+		int i = Arrays.binarySearch(indexKeys, word);
+		if (i < 0) {
+			i = -i - 2;
+			if (i < 0) {
+				return null;
+			}
+		}
+
+		ByteBuffer buffer = records.duplicate();
+		buffer.position(indexOffsets[i]);
+		int end = i + 1 < indexOffsets.length ? indexOffsets[i + 1]
+			: buffer.limit();
+		while (buffer.position() < end) {
+			int cmp = readString(buffer).compareTo(word);
+			if (cmp > 0) {
+				return null;
+			}
+
+			if (cmp == 0) {
+				return readValue(buffer);
+			}
+
+			int length = buffer.getInt();
+			if (length > 0) {
+				buffer.position(buffer.position() + length);
+			}
+		}
+
+		return null;
+	}
+
+	/*
+	 * Iterates over the segment's words and values in key order
+	 */
+	public Iterator<Map.Entry<String, byte[]>> iterator() {
+		ByteBuffer buffer = records.duplicate();
+
+		return new Iterator<Map.Entry<String, byte[]>>() {
+			@Override
+			public boolean hasNext() {
+				return buffer.hasRemaining();
+			}
+
+			@Override
+			public Map.Entry<String, byte[]> next() {
+				if (!buffer.hasRemaining()) {
+					throw new NoSuchElementException();
+				}
+
+				String key = readString(buffer);
+				return new SimpleImmutableEntry<String, byte[]>(key,
+					readValue(buffer));
+			}
+		};
+	}
+
+	/*
+	 * Gets the number of words (including tombstones) in the segment
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/*
+	 * Gets the size of the segment's records in bytes
+	 */
+	public long getSize() {
+		return records.capacity();
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/*
+	 * Deletes the segment file. Readers already holding the segment can still
+	 * read it until it is garbage collected.
+	 */
+	public void delete() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readValue(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return TOMBSTONE;
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
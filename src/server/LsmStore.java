@@ -0,0 +1,932 @@
+/*
+ * LsmStore.java
+ *
+ * DictionaryStore organised as a log-structured merge tree, for dictionaries
+ * larger than memory. Changes go to an in-memory memtable, which is flushed
+ * to an immutable sorted LsmSegment file once it grows past a threshold.
+ * Lookups check the memtable and then the segments from newest to oldest,
+ * with each segment's Bloom filter ruling out most misses without touching
+ * the disk. Deleted words are recorded as tombstones until compaction.
+ *
+ * A value holds either all of a word's definitions, as a JSON array, or only
+ * the definitions added since its older values, as the elements of one. An
+ * addition is appended without reading the definitions already stored, and
+ * a lookup joins the values from newest to oldest, stopping at the first
+ * that holds every definition, so JSON is only parsed once, as it is read.
+ *
+ * Flushing and compaction run on background threads. Segments are grouped
+ * in tiers of similar size, and compaction merges a run of adjacent segments
+ * in one tier once it grows to the compaction trigger, joining their values
+ * and dropping superseded ones, so that data is rewritten about once per
+ * tier rather than on every compaction. Tombstones, and values that only
+ * add definitions, are kept unless the run holds the oldest segment.
+ * Segments that reach LsmSegment.MAX_BYTES are not merged again. A MANIFEST
+ * file lists the live segments, and is replaced atomically whenever they
+ * change. Changes still in the memtable are written on sync, which the
+ * server calls on shutdown.
+ *
+ * The store is versioned in the same way as CompactStore: each change
+ * publishes a new immutable State of the memtable and segment list.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class LsmStore implements DictionaryStore {
+	private static final String MEMTABLE_PROPERTY = "dictionary.lsm.memtable";
+	private static final String COMPACTION_PROPERTY = "dictionary.lsm.compaction";
+
+	private static final String MANIFEST = "MANIFEST";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	// segments within a factor of this in size are in the same tier
+	private static final int TIER_FACTOR = 4;
+	// first byte of a value holding all of a word's definitions, and of one
+	// holding the definitions added to its older values
+	private static final byte WHOLE = '[';
+	private static final byte APPENDED = '+';
+	// rough heap cost of a memtable entry beyond its key and value
+	private static final int ENTRY_OVERHEAD = 64;
+	private static final long RETRY_MILLIS = 1000;
+
+	private final Path directory;
+	private final long memtableBytes;
+	private final int compactionTrigger;
+
+	private volatile State state = new State(PersistentMap.<byte[]>empty(),
+		null, new LsmSegment[0], 0);
+
+	// guarded by this
+	private long memtableSize = 0;
+	private int flushingWords = 0;
+	private int manifestWords = 0;
+	private long nextSegment = 0;
+	private IOException flushError = null;
+	private boolean closed = false;
+
+	/*
+	 * Creates a new LsmStore, configured by the dictionary.lsm.* properties
+	 *
+	 * @param directory Path of the directory holding the store's files
+	 */
+	public LsmStore(Path directory) {
+		this(directory, Long.getLong(MEMTABLE_PROPERTY, 8 << 20),
+			Integer.getInteger(COMPACTION_PROPERTY, 4));
+	}
+
+	/*
+	 * Creates a new LsmStore
+	 *
+	 * @param directory Path of the directory holding the store's files
+	 *
+	 * @param memtableBytes long approximate size at which the memtable is
+	 * flushed
+	 *
+	 * @param compactionTrigger int number of adjacent segments in a tier that
+	 * starts a compaction
+	 */
+	public LsmStore(Path directory, long memtableBytes,
+		int compactionTrigger) {
+		this.directory = directory;
+		this.memtableBytes = memtableBytes;
+		this.compactionTrigger = Math.max(2, compactionTrigger);
+
+		startDaemon(this::flushLoop, "lsm-flush");
+		startDaemon(this::compactLoop, "lsm-compact");
+	}
+
+	@Override
+	public int load(JSONObject json) {
+		try {
+			synchronized (this) {
+				awaitFlush();
+				for (LsmSegment segment : state.segments) {
+					segment.delete();
+				}
+				Files.createDirectories(directory);
+				Files.deleteIfExists(directory.resolve(MANIFEST));
+				state = new State(PersistentMap.<byte[]>empty(), null,
+					new LsmSegment[0], 0);
+				memtableSize = 0;
+				manifestWords = 0;
+			}
+
+			for (String word : json.keySet()) {
+				Object value = json.get(word);
+				JSONArray definitions = value instanceof JSONArray
+					? (JSONArray) value
+					: new JSONArray().put(value);
+				put(word, encode(definitions), 1);
+			}
+
+			sync();
+			return 0;
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	@Override
+	public synchronized boolean recover() throws IOException {
+		Path manifest = directory.resolve(MANIFEST);
+		if (!Files.exists(manifest)) {
+			return false;
+		}
+
+		JSONObject json = new JSONObject(
+			new String(Files.readAllBytes(manifest), StandardCharsets.UTF_8));
+		JSONArray names = json.getJSONArray("segments");
+		LsmSegment[] segments = new LsmSegment[names.length()];
+		Set<Path> live = new HashSet<Path>();
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = LsmSegment
+				.open(directory.resolve(names.getString(i)));
+			live.add(segments[i].getFile());
+		}
+		nextSegment = json.getLong("next");
+		manifestWords = json.getInt("words");
+
+		// files left behind by an interrupted flush or compaction
+		try (DirectoryStream<Path> files = Files
+			.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				if (!file.getFileName().toString().equals(MANIFEST)
+					&& !live.contains(file)) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+
+		state = new State(PersistentMap.<byte[]>empty(), null, segments,
+			json.getInt("words"));
+		memtableSize = 0;
+		notifyAll();
+
+		return true;
+	}
+
+	@Override
+	public JSONArray getDefinitions(String word) {
+		return state.getDefinitions(word);
+	}
+
+	@Override
+	public boolean addDefinition(String word, JSONObject definition) {
+		byte[] value = state.newest(word);
+		boolean existed = value != null && value != LsmSegment.TOMBSTONE;
+
+		// appended to the definitions already stored, without reading them
+		byte[] json = definition.toString().getBytes(StandardCharsets.UTF_8);
+		byte[] record = new byte[json.length + (existed ? 1 : 2)];
+		record[0] = existed ? APPENDED : WHOLE;
+		System.arraycopy(json, 0, record, 1, json.length);
+		if (!existed) {
+			record[record.length - 1] = ']';
+		}
+		put(word, record, existed ? 0 : 1);
+
+		return existed;
+	}
+
+	@Override
+	public boolean deleteWord(String word) {
+		byte[] value = state.newest(word);
+		if (value == null || value == LsmSegment.TOMBSTONE) {
+			return false;
+		}
+
+		put(word, LsmSegment.TOMBSTONE, -1);
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return state.size();
+	}
+
+	@Override
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		for (Map.Entry<String, JSONArray> entry : state) {
+			json.put(entry.getKey(), entry.getValue());
+		}
+
+		return json;
+	}
+
+	@Override
+	public Snapshot snapshot() {
+		return state;
+	}
+
+	@Override
+	public boolean isVersioned() {
+		return true;
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return true;
+	}
+
+	/*
+	 * Stops the flush and compaction threads once they are idle
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/*
+	 * Flushes the memtable and waits for it to be written
+	 */
+	@Override
+	public synchronized void sync() throws IOException {
+		freeze();
+		awaitFlush();
+	}
+
+	/*
+	 * Puts a value in the memtable, joined to the value already there, and
+	 * freezes the memtable to be flushed once it is full
+	 *
+	 * @param word String to put
+	 *
+	 * @param value byte[] definitions as UTF-8 JSON, or TOMBSTONE
+	 *
+	 * @param wordDelta int change in the number of words
+	 */
+	private synchronized void put(String word, byte[] value, int wordDelta) {
+		State current = state;
+		byte[] old = current.memtable.get(word);
+		if (old != null && !isWhole(value)) {
+			value = merge(Arrays.asList(value, old));
+		}
+		state = new State(current.memtable.plus(word, value), current.flushing,
+			current.segments, current.words + wordDelta);
+
+		memtableSize += old == null
+			? 2 * word.length() + value.length + ENTRY_OVERHEAD
+			: value.length - old.length;
+		if (memtableSize >= memtableBytes) {
+			try {
+				freeze();
+			} catch (IOException ioe) {
+				// the memtable stays in memory and is retried on the next put
+				Log.error("Could not flush the memtable", ioe);
+			}
+		}
+	}
+
+	/*
+	 * Hands the memtable to the flush thread, first waiting for any earlier
+	 * flush so that at most one memtable is waiting to be written
+	 */
+	private synchronized void freeze() throws IOException {
+		awaitFlush();
+
+		State current = state;
+		if (current.memtable.isEmpty()) {
+			return;
+		}
+
+		state = new State(PersistentMap.<byte[]>empty(), current.memtable,
+			current.segments, current.words);
+		flushingWords = current.words;
+		memtableSize = 0;
+		notifyAll();
+	}
+
+	/*
+	 * Waits for the frozen memtable, if any, to be written, throwing the
+	 * error if writing it failed
+	 */
+	private synchronized void awaitFlush() throws IOException {
+		while (state.flushing != null) {
+			if (flushError != null) {
+				throw flushError;
+			}
+			try {
+				wait();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for flush", ie);
+			}
+		}
+	}
+
+	/*
+	 * Writes frozen memtables to new segments
+	 */
+	private void flushLoop() {
+		while (true) {
+			PersistentMap<byte[]> flushing;
+			boolean keepTombstones;
+			synchronized (this) {
+				while (state.flushing == null) {
+					if (closed) {
+						return;
+					}
+					waitQuietly();
+				}
+				flushing = state.flushing;
+				// tombstones only have to shadow words in older segments
+				keepTombstones = state.segments.length > 0;
+			}
+
+			List<LsmSegment> written = new ArrayList<LsmSegment>();
+			try {
+				List<Map.Entry<String, byte[]>> entries = new ArrayList<Map.Entry<String, byte[]>>();
+				for (Map.Entry<String, byte[]> entry : flushing.entrySet()) {
+					if (keepTombstones
+						|| entry.getValue() != LsmSegment.TOMBSTONE) {
+						entries.add(entry);
+					}
+				}
+				entries.sort(Map.Entry.comparingByKey());
+
+				// split like compaction's outputs, should the memtable be large
+				Iterator<Map.Entry<String, byte[]>> remaining = entries
+					.iterator();
+				while (remaining.hasNext()) {
+					written.add(
+						LsmSegment.write(
+							newSegmentFile(),
+							remaining,
+							entries.size()));
+				}
+
+				synchronized (this) {
+					State current = state;
+					LsmSegment[] segments = new LsmSegment[written.size()
+						+ current.segments.length];
+					for (int i = 0; i < written.size(); i++) {
+						segments[i] = written.get(i);
+					}
+					System.arraycopy(current.segments, 0, segments,
+						written.size(), current.segments.length);
+					writeManifest(segments, flushingWords);
+					state = new State(current.memtable, null, segments,
+						current.words);
+					flushError = null;
+					notifyAll();
+				}
+
+				Log.debug(
+					"Flushed memtable",
+					"words",
+					entries.size(),
+					"segments",
+					state.segments.length);
+			} catch (IOException ioe) {
+				Log.error("Could not flush the memtable", ioe);
+				// the manifest does not list them, so they would be orphaned
+				deleteQuietly(written);
+				synchronized (this) {
+					flushError = ioe;
+					notifyAll();
+				}
+				sleepQuietly(RETRY_MILLIS);
+			}
+		}
+	}
+
+	/*
+	 * Merges a run of segments in the same tier whenever one grows to the
+	 * compaction trigger
+	 */
+	private void compactLoop() {
+		while (true) {
+			LsmSegment[] segments;
+			int[] run;
+			synchronized (this) {
+				while ((run = findRun(state.segments)) == null) {
+					if (closed) {
+						return;
+					}
+					waitQuietly();
+				}
+				segments = state.segments;
+			}
+			LsmSegment[] inputs = Arrays
+				.copyOfRange(segments, run[0], run[1]);
+			boolean oldest = run[1] == segments.length;
+
+			long start = System.currentTimeMillis();
+			List<LsmSegment> outputs = new ArrayList<LsmSegment>();
+			try {
+				int expected = 0;
+				List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<Iterator<Map.Entry<String, byte[]>>>();
+				for (LsmSegment segment : inputs) {
+					sources.add(segment.iterator());
+					expected += segment.getCount();
+				}
+
+				// with no older segment, nothing needs shadowing or adding to
+				Iterator<Map.Entry<String, byte[]>> merged = new MergeIterator(
+					sources);
+				if (oldest) {
+					merged = new LiveIterator(merged);
+				}
+				while (merged.hasNext()) {
+					outputs.add(
+						LsmSegment.write(newSegmentFile(), merged, expected));
+				}
+
+				synchronized (this) {
+					// segments flushed meanwhile are newer than the inputs
+					State current = state;
+					int from = current.segments.length - segments.length
+						+ run[0];
+					int after = current.segments.length - from - inputs.length;
+					LsmSegment[] compacted = new LsmSegment[from
+						+ outputs.size() + after];
+					System.arraycopy(current.segments, 0, compacted, 0, from);
+					for (int i = 0; i < outputs.size(); i++) {
+						compacted[from + i] = outputs.get(i);
+					}
+					System.arraycopy(current.segments, from + inputs.length,
+						compacted, from + outputs.size(), after);
+					// compaction does not change the words the segments hold
+					writeManifest(compacted, manifestWords);
+					state = new State(current.memtable, current.flushing,
+						compacted, current.words);
+				}
+			} catch (IOException ioe) {
+				Log.error("Could not compact segments", ioe);
+				deleteQuietly(outputs);
+				sleepQuietly(RETRY_MILLIS);
+				continue;
+			}
+
+			// the outputs are live now, so only the inputs may be deleted
+			deleteQuietly(Arrays.asList(inputs));
+			Log.info(
+				"Compacted segments",
+				"tier",
+				tier(inputs[0]),
+				"inputs",
+				inputs.length,
+				"outputs",
+				outputs.size(),
+				"millis",
+				System.currentTimeMillis() - start);
+		}
+	}
+
+	/*
+	 * Deletes the files of segments the manifest does not list, logging
+	 * rather than throwing if one cannot be deleted, as the next recovery
+	 * removes it anyway
+	 *
+	 * @param segments List of LsmSegment to delete
+	 */
+	private void deleteQuietly(List<LsmSegment> segments) {
+		for (LsmSegment segment : segments) {
+			try {
+				segment.delete();
+			} catch (IOException ioe) {
+				Log.warn(
+					"Could not delete segment",
+					"file",
+					segment.getFile().toString(),
+					"error",
+					ioe.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Finds the newest run of at least compactionTrigger adjacent segments in
+	 * the same tier, returning its bounds [from, to), or null if there is none
+	 *
+	 * @param segments LsmSegment[] live segments, newest first
+	 */
+	private int[] findRun(LsmSegment[] segments) {
+		int from = 0;
+		for (int i = 1; i <= segments.length; i++) {
+			if (i < segments.length
+				&& tier(segments[i]) == tier(segments[from])) {
+				continue;
+			}
+
+			if (i - from >= compactionTrigger && tier(segments[from]) >= 0) {
+				return new int[] { from, i };
+			}
+			from = i;
+		}
+
+		return null;
+	}
+
+	/*
+	 * Gets the size tier of a segment: 0 below the memtable size, and one
+	 * more for each TIER_FACTOR times larger. Returns -1 for a segment that
+	 * has reached LsmSegment.MAX_BYTES, as merging those would only split
+	 * them again.
+	 *
+	 * @param segment LsmSegment to place
+	 */
+	private int tier(LsmSegment segment) {
+		long size = segment.getSize();
+		if (size >= LsmSegment.MAX_BYTES) {
+			return -1;
+		}
+
+		int tier = 0;
+		for (long bound = Math.max(1, memtableBytes); size >= bound
+			&& bound <= Long.MAX_VALUE / TIER_FACTOR; bound *= TIER_FACTOR) {
+			tier++;
+		}
+
+		return tier;
+	}
+
+	private synchronized Path newSegmentFile() {
+		return directory.resolve(
+			String.format(
+				"%s%08d%s",
+				SEGMENT_PREFIX,
+				nextSegment++,
+				SEGMENT_SUFFIX));
+	}
+
+	/*
+	 * Replaces the manifest with one listing segments
+	 *
+	 * @param segments LsmSegment[] live segments, newest first
+	 *
+	 * @param words int number of words in the segments
+	 */
+	private synchronized void writeManifest(LsmSegment[] segments, int words)
+		throws IOException {
+		JSONArray names = new JSONArray();
+		for (LsmSegment segment : segments) {
+			names.put(segment.getFile().getFileName().toString());
+		}
+		JSONObject json = new JSONObject().put("segments", names)
+			.put("words", words).put("next", nextSegment);
+
+		Path manifest = directory.resolve(MANIFEST);
+		Path temp = directory.resolve(MANIFEST + ".tmp");
+		Files.write(temp, json.toString().getBytes(StandardCharsets.UTF_8));
+		try {
+			Files.move(
+				temp,
+				manifest,
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException amnse) {
+			Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING);
+		}
+		manifestWords = words;
+	}
+
+	private void waitQuietly() {
+		try {
+			wait();
+		} catch (InterruptedException ie) {
+			/* ignored */
+		}
+	}
+
+	private static void sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException ie) {
+			/* ignored */
+		}
+	}
+
+	private static void startDaemon(Runnable runner, String name) {
+		Thread thread = new Thread(runner, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static byte[] encode(JSONArray definitions) {
+		return definitions.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static JSONArray decode(byte[] value) {
+		if (value[0] == APPENDED) {
+			return new JSONArray("["
+				+ new String(value, 1, value.length - 1, StandardCharsets.UTF_8)
+				+ "]");
+		}
+
+		return new JSONArray(new String(value, StandardCharsets.UTF_8));
+	}
+
+	/*
+	 * Returns true if value holds all of a word's definitions, or is a
+	 * tombstone, so that older values of the word are superseded
+	 *
+	 * @param value byte[] stored value
+	 */
+	private static boolean isWhole(byte[] value) {
+		return value == LsmSegment.TOMBSTONE || value[0] != APPENDED;
+	}
+
+	/*
+	 * Joins values of a word, newest first, into one, without parsing them.
+	 * Values after the first whole one are superseded and ignored. The result
+	 * is whole unless all the values only add definitions.
+	 *
+	 * @param values List of the word's values, newest first
+	 */
+	private static byte[] merge(List<byte[]> values) {
+		int end = 0;
+		while (end < values.size() && !isWhole(values.get(end))) {
+			end++;
+		}
+		if (end == 0) {
+			return values.get(0);
+		}
+
+		byte[] base = end < values.size() ? values.get(end) : null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(base == null ? APPENDED : WHOLE);
+		boolean empty = true;
+		if (base != null && base != LsmSegment.TOMBSTONE && base.length > 2) {
+			out.write(base, 1, base.length - 2);
+			empty = false;
+		}
+		for (int i = end - 1; i >= 0; i--) {
+			byte[] value = values.get(i);
+			if (!empty) {
+				out.write(',');
+			}
+			out.write(value, 1, value.length - 1);
+			empty = false;
+		}
+		if (base != null) {
+			out.write(']');
+		}
+
+		return out.toByteArray();
+	}
+
+	/*
+	 * Internal class for a published version of the store
+	 */
+	private static class State implements Snapshot {
+		private final PersistentMap<byte[]> memtable;
+		// memtable being written to a segment, or null
+		private final PersistentMap<byte[]> flushing;
+		// newest first
+		private final LsmSegment[] segments;
+		private final int words;
+
+		private State(PersistentMap<byte[]> memtable,
+			PersistentMap<byte[]> flushing, LsmSegment[] segments,
+			int words) {
+			this.memtable = memtable;
+			this.flushing = flushing;
+			this.segments = segments;
+			this.words = words;
+		}
+
+		@Override
+		public int size() {
+			return words;
+		}
+
+		@Override
+		public JSONArray getDefinitions(String word) {
+			byte[] value = find(word);
+			return value == null || value == LsmSegment.TOMBSTONE ? null
+				: decode(value);
+		}
+
+		/*
+		 * Gets the value of word joined from its values in the memtables and
+		 * segments, which may be a TOMBSTONE, or null if it was never stored
+		 */
+		private byte[] find(String word) {
+			List<byte[]> values = new ArrayList<byte[]>(2);
+			add(values, memtable.get(word));
+			if (flushing != null && !isJoined(values)) {
+				add(values, flushing.get(word));
+			}
+			for (int i = 0; i < segments.length && !isJoined(values); i++) {
+				add(values, segments[i].get(word));
+			}
+
+			return values.isEmpty() ? null : merge(values);
+		}
+
+		/*
+		 * Gets the newest value of word, which may be a TOMBSTONE, or null
+		 * if it was never stored
+		 */
+		private byte[] newest(String word) {
+			byte[] value = memtable.get(word);
+			if (value == null && flushing != null) {
+				value = flushing.get(word);
+			}
+			for (int i = 0; value == null && i < segments.length; i++) {
+				value = segments[i].get(word);
+			}
+
+			return value;
+		}
+
+		private static void add(List<byte[]> values, byte[] value) {
+			if (value != null) {
+				values.add(value);
+			}
+		}
+
+		private static boolean isJoined(List<byte[]> values) {
+			return !values.isEmpty() && isWhole(values.get(values.size() - 1));
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, JSONArray>> iterator() {
+			List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<Iterator<Map.Entry<String, byte[]>>>();
+			sources.add(sorted(memtable));
+			if (flushing != null) {
+				sources.add(sorted(flushing));
+			}
+			for (LsmSegment segment : segments) {
+				sources.add(segment.iterator());
+			}
+
+			Iterator<Map.Entry<String, byte[]>> live = new LiveIterator(
+				new MergeIterator(sources));
+			return new Iterator<Map.Entry<String, JSONArray>>() {
+				@Override
+				public boolean hasNext() {
+					return live.hasNext();
+				}
+
+				@Override
+				public Map.Entry<String, JSONArray> next() {
+					Map.Entry<String, byte[]> entry = live.next();
+					return new SimpleImmutableEntry<String, JSONArray>(
+						entry.getKey(),
+						decode(entry.getValue()));
+				}
+			};
+		}
+
+		private static Iterator<Map.Entry<String, byte[]>> sorted(
+			PersistentMap<byte[]> map) {
+			List<Map.Entry<String, byte[]>> entries = new ArrayList<Map.Entry<String, byte[]>>(
+				map.entrySet());
+			entries.sort(Map.Entry.comparingByKey());
+
+			return entries.iterator();
+		}
+	}
+
+	/*
+	 * Internal class merging sorted sources, ordered newest first, into one
+	 * sorted sequence holding each word's values joined into one
+	 */
+	private static class MergeIterator
+		implements Iterator<Map.Entry<String, byte[]>> {
+		private final PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>();
+
+		private MergeIterator(List<Iterator<Map.Entry<String, byte[]>>> sources) {
+			for (int i = 0; i < sources.size(); i++) {
+				Cursor cursor = new Cursor(sources.get(i), i);
+				if (cursor.advance()) {
+					cursors.add(cursor);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !cursors.isEmpty();
+		}
+
+		@Override
+		public Map.Entry<String, byte[]> next() {
+			Cursor newest = cursors.poll();
+			if (newest == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, byte[]> entry = newest.current;
+
+			// join the older values of the same word, up to a whole one
+			List<byte[]> values = new ArrayList<byte[]>(1);
+			values.add(entry.getValue());
+			while (!cursors.isEmpty()
+				&& cursors.peek().current.getKey().equals(entry.getKey())) {
+				Cursor older = cursors.poll();
+				if (!isWhole(values.get(values.size() - 1))) {
+					values.add(older.current.getValue());
+				}
+				if (older.advance()) {
+					cursors.add(older);
+				}
+			}
+			if (newest.advance()) {
+				cursors.add(newest);
+			}
+
+			return values.size() == 1 ? entry
+				: new SimpleImmutableEntry<String, byte[]>(entry.getKey(),
+					merge(values));
+		}
+
+		private static class Cursor implements Comparable<Cursor> {
+			private final Iterator<Map.Entry<String, byte[]>> source;
+			private final int age;
+			private Map.Entry<String, byte[]> current;
+
+			private Cursor(Iterator<Map.Entry<String, byte[]>> source,
+				int age) {
+				this.source = source;
+				this.age = age;
+			}
+
+			private boolean advance() {
+				current = source.hasNext() ? source.next() : null;
+				return current != null;
+			}
+
+			@Override
+			public int compareTo(Cursor other) {
+				int cmp = current.getKey().compareTo(other.current.getKey());
+				return cmp != 0 ? cmp : Integer.compare(age, other.age);
+			}
+		}
+	}
+
+	/*
+	 * Internal class skipping the tombstones of another iterator, and making
+	 * values that only add definitions whole, for when there is nothing older
+	 */
+	private static class LiveIterator
+		implements Iterator<Map.Entry<String, byte[]>> {
+		private final Iterator<Map.Entry<String, byte[]>> source;
+		private Map.Entry<String, byte[]> next;
+
+		private LiveIterator(Iterator<Map.Entry<String, byte[]>> source) {
+			this.source = source;
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, byte[]> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+
+			Map.Entry<String, byte[]> entry = next;
+			advance();
+			return entry;
+		}
+
+		private void advance() {
+			next = null;
+			while (source.hasNext() && next == null) {
+				Map.Entry<String, byte[]> entry = source.next();
+				if (entry.getValue() == LsmSegment.TOMBSTONE) {
+					continue;
+				}
+
+				// a tombstone stands for a word with no older definitions
+				next = isWhole(entry.getValue()) ? entry
+					: new SimpleImmutableEntry<String, byte[]>(entry.getKey(),
+						merge(Arrays.asList(
+							entry.getValue(),
+							LsmSegment.TOMBSTONE)));
+			}
+		}
+	}
+}
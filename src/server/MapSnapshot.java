@@ -0,0 +1,67 @@
+/*
+ * MapSnapshot.java
+ * 
+ * Snapshot over an unchanging copy of a store's index, building each word's
+ * definitions only as they are read.
+ * 
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.json.JSONArray;
+
+public class MapSnapshot<V> implements DictionaryStore.Snapshot {
+	private final Map<String, V> words;
+	private final Function<V, JSONArray> materialiser;
+
+	/*
+	 * Creates a new MapSnapshot
+	 * 
+	 * @param words Map from each word to its stored entry, which must not be
+	 * modified afterwards
+	 * 
+	 * @param materialiser Function building the definitions of an entry
+	 */
+	public MapSnapshot(Map<String, V> words,
+		Function<V, JSONArray> materialiser) {
+		this.words = words;
+		this.materialiser = materialiser;
+	}
+
+	@Override
+	public int size() {
+		return words.size();
+	}
+
+	@Override
+	public JSONArray getDefinitions(String word) {
+		V entry = words.get(word);
+		return entry == null ? null : materialiser.apply(entry);
+	}
+
+	@Override
+	public Iterator<Map.Entry<String, JSONArray>> iterator() {
+		Iterator<Map.Entry<String, V>> it = words.entrySet().iterator();
+
+		return new Iterator<Map.Entry<String, JSONArray>>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public Map.Entry<String, JSONArray> next() {
+				Map.Entry<String, V> entry = it.next();
+				return new SimpleImmutableEntry<String, JSONArray>(
+					entry.getKey(),
+					materialiser.apply(entry.getValue()));
+			}
+		};
+	}
+}
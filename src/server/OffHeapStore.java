@@ -0,0 +1,329 @@
+/*
+ * OffHeapStore.java
+ *
+ * DictionaryStore which keeps definition payloads in direct (off-heap) memory.
+ * Only a compact index of words to packed handles lives on the heap, so the
+ * garbage collector never has to trace the definition text.
+ *
+ * Definitions are appended to fixed-size arena chunks as UTF-8 JSON. Space
+ * freed by deletions is reclaimed by compacting the arena once it makes up
+ * more than half of it.
+ *
+ * The store is versioned: each change publishes a new immutable State of the
+ * index and the arena chunks it refers to. Bytes are only ever written past
+ * what a State can see, and compaction copies into new chunks, so a State
+ * stays readable (without locking) for as long as it is held.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class OffHeapStore implements DictionaryStore {
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	// handle layout: | chunk (20 bits) | offset (20 bits) | length (24 bits) |
+	private static final int OFFSET_BITS = 20;
+	private static final int LENGTH_BITS = 24;
+	private static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+	private static final int MAX_CHUNKS = 1 << 20;
+
+	private volatile State state = new State(
+		PersistentMap.<Entry>empty(),
+		new ByteBuffer[0]);
+
+	// arena bookkeeping, only used by the writer
+	private ByteBuffer[] chunks = new ByteBuffer[0];
+	private int position = CHUNK_SIZE;
+	private long liveBytes = 0;
+	private long freeBytes = 0;
+
+	@Override
+	public int load(JSONObject json) {
+		chunks = new ByteBuffer[0];
+		position = CHUNK_SIZE;
+		liveBytes = 0;
+		freeBytes = 0;
+		state = new State(PersistentMap.<Entry>empty(), chunks);
+
+		int skipped = 0;
+		for (String word : json.keySet()) {
+			Object value = json.get(word);
+			if (value instanceof JSONArray) {
+				for (Object definition : (JSONArray) value) {
+					if (definition instanceof JSONObject) {
+						addDefinition(word, (JSONObject) definition);
+					} else {
+						skipped++;
+					}
+				}
+			} else if (value instanceof JSONObject) {
+				addDefinition(word, (JSONObject) value);
+			} else {
+				skipped++;
+			}
+		}
+
+		return skipped;
+	}
+
+	@Override
+	public JSONArray getDefinitions(String word) {
+		return state.getDefinitions(word);
+	}
+
+	@Override
+	public boolean addDefinition(String word, JSONObject definition) {
+		PersistentMap<Entry> index = state.index;
+
+		long handle = write(definition.toString());
+		Entry entry = index.get(word);
+		Entry added = entry == null ? new Entry(handle) : entry.plus(handle);
+		state = new State(index.plus(word, added), chunks);
+
+		return entry != null;
+	}
+
+	@Override
+	public boolean deleteWord(String word) {
+		PersistentMap<Entry> index = state.index;
+		Entry entry = index.get(word);
+		if (entry == null) {
+			return false;
+		}
+
+		for (int i = 0; i < entry.size; i++) {
+			long length = lengthOf(entry.handles[i]);
+			liveBytes -= length;
+			freeBytes += length;
+		}
+		index = index.minus(word);
+
+		if (freeBytes > liveBytes && freeBytes > CHUNK_SIZE) {
+			index = compact(index);
+		}
+		state = new State(index, chunks);
+
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return state.size();
+	}
+
+	@Override
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		for (Map.Entry<String, JSONArray> entry : state) {
+			json.put(entry.getKey(), entry.getValue());
+		}
+
+		return json;
+	}
+
+	@Override
+	public Snapshot snapshot() {
+		return state;
+	}
+
+	@Override
+	public boolean isVersioned() {
+		return true;
+	}
+
+	/*
+	 * Gets the number of bytes allocated off-heap
+	 */
+	public long getAllocatedBytes() {
+		long allocated = 0;
+		for (ByteBuffer chunk : state.chunks) {
+			allocated += chunk.capacity();
+		}
+
+		return allocated;
+	}
+
+	/*
+	 * Copies every live definition in index into a fresh arena, returning the
+	 * index of the copies. The old chunks are released to the garbage
+	 * collector (and with them their direct memory) once no snapshot holds
+	 * them.
+	 *
+	 * @param index PersistentMap of the live entries
+	 */
+	private PersistentMap<Entry> compact(PersistentMap<Entry> index) {
+		ByteBuffer[] oldChunks = chunks;
+		chunks = new ByteBuffer[0];
+		position = CHUNK_SIZE;
+		liveBytes = 0;
+		freeBytes = 0;
+
+		PersistentMap<Entry> compacted = PersistentMap.empty();
+		for (Map.Entry<String, Entry> word : index.entrySet()) {
+			Entry entry = word.getValue();
+			long[] handles = new long[entry.size];
+			for (int i = 0; i < entry.size; i++) {
+				handles[i] = write(read(oldChunks, entry.handles[i]));
+			}
+			compacted = compacted
+				.plus(word.getKey(), new Entry(handles, entry.size));
+		}
+
+		return compacted;
+	}
+
+	/*
+	 * Appends a string to the arena, returning its handle
+	 *
+	 * @param s String to store
+	 */
+	private long write(String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_LENGTH) {
+			throw new IllegalArgumentException("Definition is too large");
+		}
+
+		if (position + bytes.length > CHUNK_SIZE) {
+			if (chunks.length == MAX_CHUNKS) {
+				throw new IllegalStateException("Off-heap arena is full");
+			}
+			chunks = Arrays.copyOf(chunks, chunks.length + 1);
+			chunks[chunks.length - 1] = ByteBuffer
+				.allocateDirect(Math.max(CHUNK_SIZE, bytes.length));
+			position = 0;
+		}
+
+		int chunk = chunks.length - 1;
+		ByteBuffer buffer = chunks[chunk].duplicate();
+		buffer.position(position);
+		buffer.put(bytes);
+
+		long handle = ((long) chunk << (OFFSET_BITS + LENGTH_BITS))
+			| ((long) position << LENGTH_BITS) | bytes.length;
+		// oversized definitions get a chunk to themselves
+		position = bytes.length > CHUNK_SIZE ? CHUNK_SIZE
+			: position + bytes.length;
+		liveBytes += bytes.length;
+
+		return handle;
+	}
+
+	/*
+	 * Reads the string stored at handle
+	 *
+	 * @param chunks ByteBuffer[] arena the handle refers to
+	 *
+	 * @param handle long returned by write
+	 */
+	private static String read(ByteBuffer[] chunks, long handle) {
+		int chunk = (int) (handle >>> (OFFSET_BITS + LENGTH_BITS));
+		int offset = (int) (handle >>> LENGTH_BITS) & ((1 << OFFSET_BITS) - 1);
+		byte[] bytes = new byte[lengthOf(handle)];
+
+		ByteBuffer buffer = chunks[chunk].duplicate();
+		buffer.position(offset);
+		buffer.get(bytes);
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int lengthOf(long handle) {
+		return (int) (handle & MAX_LENGTH);
+	}
+
+	/*
+	 * Internal class for a published version of the store
+	 */
+	private static class State implements Snapshot {
+		private final PersistentMap<Entry> index;
+		private final ByteBuffer[] chunks;
+
+		private State(PersistentMap<Entry> index, ByteBuffer[] chunks) {
+			this.index = index;
+			this.chunks = chunks;
+		}
+
+		@Override
+		public int size() {
+			return index.size();
+		}
+
+		@Override
+		public JSONArray getDefinitions(String word) {
+			Entry entry = index.get(word);
+			return entry == null ? null : entry.toJSON(chunks);
+		}
+
+		@Override
+		public int countDefinitions(String word) {
+			Entry entry = index.get(word);
+			return entry == null ? 0 : entry.size;
+		}
+
+		@Override
+		public JSONArray getDefinitions(String word, int offset, int limit) {
+			Entry entry = index.get(word);
+			return entry == null ? new JSONArray()
+				: entry.toJSON(chunks, offset, limit);
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, JSONArray>> iterator() {
+			return new MapSnapshot<Entry>(index, entry -> entry.toJSON(chunks))
+				.iterator();
+		}
+	}
+
+	/*
+	 * Internal class holding the handles of a word's definitions. An Entry
+	 * never changes: adding a handle returns a new Entry, which appends to
+	 * the same array while it has room, as older Entries only read up to
+	 * their own size.
+	 */
+	private static class Entry {
+		private final long[] handles;
+		private final int size;
+
+		private Entry(long handle) {
+			this(new long[] { handle }, 1);
+		}
+
+		private Entry(long[] handles, int size) {
+			this.handles = handles;
+			this.size = size;
+		}
+
+		private Entry plus(long handle) {
+			long[] newHandles = size == handles.length
+				? Arrays.copyOf(handles, size * 2)
+				: handles;
+			newHandles[size] = handle;
+
+			return new Entry(newHandles, size + 1);
+		}
+
+		private JSONArray toJSON(ByteBuffer[] chunks) {
+			return toJSON(chunks, 0, size);
+		}
+
+		private JSONArray toJSON(ByteBuffer[] chunks, int offset, int limit) {
+			JSONArray definitions = new JSONArray();
+			int end = (int) Math.min(size, (long) offset + limit);
+			for (int i = offset; i < end; i++) {
+				definitions.put(new JSONObject(read(chunks, handles[i])));
+			}
+
+			return definitions;
+		}
+	}
+}
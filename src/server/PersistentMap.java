@@ -0,0 +1,401 @@
+/*
+ * PersistentMap.java
+ *
+ * An immutable hash array mapped trie from Strings to values. Updates return
+ * a new map sharing all but the changed path with the old one, so taking a
+ * snapshot is just keeping a reference, and any number of threads may read
+ * a map while another builds newer versions of it.
+ *
+ * Superseded versions are reclaimed by the garbage collector once no reader
+ * holds them.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+public final class PersistentMap<V> extends AbstractMap<String, V> {
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private static final PersistentMap<?> EMPTY = new PersistentMap<Object>(
+		new BitmapNode(0, new Object[0]), 0);
+
+	private final Node root;
+	private final int size;
+
+	private PersistentMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/*
+	 * Gets the empty PersistentMap
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> PersistentMap<V> empty() {
+		return (PersistentMap<V>) EMPTY;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+
+		return (V) root.find(0, hash((String) key), (String) key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * Returns a map with key mapped to value
+	 *
+	 * @param key String key to set
+	 *
+	 * @param value V value to map key to, not null
+	 */
+	public PersistentMap<V> plus(String key, V value) {
+		boolean[] added = new boolean[1];
+		Node newRoot = root.assoc(0, hash(key), key, value, added);
+
+		return newRoot == root ? this
+			: new PersistentMap<V>(newRoot, added[0] ? size + 1 : size);
+	}
+
+	/*
+	 * Returns a map without key
+	 *
+	 * @param key String key to remove
+	 */
+	public PersistentMap<V> minus(String key) {
+		Node newRoot = root.without(0, hash(key), key);
+		if (newRoot == root) {
+			return this;
+		}
+
+		return newRoot == null ? empty()
+			: new PersistentMap<V>(newRoot, size - 1);
+	}
+
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		return new AbstractSet<Map.Entry<String, V>>() {
+			@Override
+			public Iterator<Map.Entry<String, V>> iterator() {
+				return new EntryIterator<V>(root);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & MASK);
+	}
+
+	/*
+	 * Internal interface for trie nodes. Node arrays hold key/value pairs,
+	 * where a null key means the value is a child node.
+	 */
+	private interface Node {
+		Object find(int shift, int hash, String key);
+
+		Node assoc(int shift, int hash, String key, Object value,
+			boolean[] added);
+
+		Node without(int shift, int hash, String key);
+
+		Object[] array();
+	}
+
+	/*
+	 * Internal class for a node holding up to 32 entries or children,
+	 * selected by 5 bits of the hash
+	 */
+	private static final class BitmapNode implements Node {
+		private final int bitmap;
+		private final Object[] array;
+
+		private BitmapNode(int bitmap, Object[] array) {
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		@Override
+		public Object find(int shift, int hash, String key) {
+			int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+
+			int i = 2 * index(bit);
+			Object k = array[i];
+			if (k == null) {
+				return ((Node) array[i + 1]).find(shift + BITS, hash, key);
+			}
+
+			return key.equals(k) ? array[i + 1] : null;
+		}
+
+		@Override
+		public Node assoc(int shift, int hash, String key, Object value,
+			boolean[] added) {
+			int bit = bit(hash, shift);
+			int i = 2 * index(bit);
+
+			if ((bitmap & bit) == 0) {
+				Object[] newArray = new Object[array.length + 2];
+				System.arraycopy(array, 0, newArray, 0, i);
+				newArray[i] = key;
+				newArray[i + 1] = value;
+				System.arraycopy(array, i, newArray, i + 2, array.length - i);
+				added[0] = true;
+				return new BitmapNode(bitmap | bit, newArray);
+			}
+
+			Object k = array[i];
+			Object v = array[i + 1];
+			if (k == null) {
+				Node child = ((Node) v)
+					.assoc(shift + BITS, hash, key, value, added);
+				return child == v ? this : with(i + 1, child);
+			}
+			if (key.equals(k)) {
+				return v == value ? this : with(i + 1, value);
+			}
+
+			added[0] = true;
+			Node child = pair(shift + BITS, (String) k, v, hash, key, value);
+			Object[] newArray = array.clone();
+			newArray[i] = null;
+			newArray[i + 1] = child;
+			return new BitmapNode(bitmap, newArray);
+		}
+
+		@Override
+		public Node without(int shift, int hash, String key) {
+			int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+
+			int i = 2 * index(bit);
+			Object k = array[i];
+			if (k == null) {
+				Node child = ((Node) array[i + 1])
+					.without(shift + BITS, hash, key);
+				if (child == array[i + 1]) {
+					return this;
+				}
+				if (child != null) {
+					return with(i + 1, child);
+				}
+			} else if (!key.equals(k)) {
+				return this;
+			}
+
+			if (bitmap == bit) {
+				return null;
+			}
+
+			Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, i);
+			System.arraycopy(array, i + 2, newArray, i, newArray.length - i);
+			return new BitmapNode(bitmap ^ bit, newArray);
+		}
+
+		@Override
+		public Object[] array() {
+			return array;
+		}
+
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		private BitmapNode with(int i, Object value) {
+			Object[] newArray = array.clone();
+			newArray[i] = value;
+			return new BitmapNode(bitmap, newArray);
+		}
+
+		/*
+		 * Creates a node holding two entries
+		 */
+		private static Node pair(int shift, String key1, Object value1,
+			int hash2, String key2, Object value2) {
+			int hash1 = hash(key1);
+			if (hash1 == hash2) {
+				return new CollisionNode(hash1,
+					new Object[] { key1, value1, key2, value2 });
+			}
+
+			boolean[] added = new boolean[1];
+			return new BitmapNode(0, new Object[0])
+				.assoc(shift, hash1, key1, value1, added)
+				.assoc(shift, hash2, key2, value2, added);
+		}
+	}
+
+	/*
+	 * Internal class for a node holding entries whose hashes are equal
+	 */
+	private static final class CollisionNode implements Node {
+		private final int hash;
+		private final Object[] array;
+
+		private CollisionNode(int hash, Object[] array) {
+			this.hash = hash;
+			this.array = array;
+		}
+
+		@Override
+		public Object find(int shift, int hash, String key) {
+			int i = indexOf(key);
+			return i < 0 ? null : array[i + 1];
+		}
+
+		@Override
+		public Node assoc(int shift, int hash, String key, Object value,
+			boolean[] added) {
+			if (hash != this.hash) {
+				// nest this node under a bitmap node to separate the hashes
+				return new BitmapNode(bit(this.hash, shift),
+					new Object[] { null, this })
+						.assoc(shift, hash, key, value, added);
+			}
+
+			int i = indexOf(key);
+			if (i >= 0) {
+				if (array[i + 1] == value) {
+					return this;
+				}
+				Object[] newArray = array.clone();
+				newArray[i + 1] = value;
+				return new CollisionNode(hash, newArray);
+			}
+
+			Object[] newArray = new Object[array.length + 2];
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			newArray[array.length] = key;
+			newArray[array.length + 1] = value;
+			added[0] = true;
+			return new CollisionNode(hash, newArray);
+		}
+
+		@Override
+		public Node without(int shift, int hash, String key) {
+			int i = indexOf(key);
+			if (i < 0) {
+				return this;
+			}
+			if (array.length == 2) {
+				return null;
+			}
+
+			Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, i);
+			System.arraycopy(array, i + 2, newArray, i, newArray.length - i);
+			return new CollisionNode(hash, newArray);
+		}
+
+		@Override
+		public Object[] array() {
+			return array;
+		}
+
+		private int indexOf(String key) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (key.equals(array[i])) {
+					return i;
+				}
+			}
+
+			return -1;
+		}
+	}
+
+	/*
+	 * Internal class walking the trie depth first
+	 */
+	private static final class EntryIterator<V>
+		implements Iterator<Map.Entry<String, V>> {
+		private final Deque<Object[]> arrays = new ArrayDeque<Object[]>();
+		private final Deque<Integer> positions = new ArrayDeque<Integer>();
+
+		private Map.Entry<String, V> next = null;
+
+		private EntryIterator(Node root) {
+			arrays.push(root.array());
+			positions.push(0);
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, V> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+
+			Map.Entry<String, V> entry = next;
+			advance();
+			return entry;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void advance() {
+			next = null;
+			while (!arrays.isEmpty()) {
+				Object[] array = arrays.peek();
+				int i = positions.pop();
+				if (i >= array.length) {
+					arrays.pop();
+					continue;
+				}
+
+				positions.push(i + 2);
+				if (array[i] == null) {
+					arrays.push(((Node) array[i + 1]).array());
+					positions.push(0);
+				} else {
+					next = new SimpleImmutableEntry<String, V>(
+						(String) array[i],
+						(V) array[i + 1]);
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,660 @@
+/*
+ * ProtocolCodec.java
+ *
+ * A streaming codec for the protocol's hot path, the plain query and its
+ * response, which decodes requests and encodes responses straight from and
+ * into reusable byte buffers rather than through org.json's parse trees and
+ * intermediate Strings. Each thread has its own codec.
+ *
+ * Requests are read whole, as writeUTF frames, and scanned in place for the
+ * fields a plain query uses; any other request, or one the scanner does not
+ * understand, is parsed with org.json from the same buffer. Responses are
+ * valid JSON in writeUTF framing, so the codec is invisible to clients.
+ * Supplementary characters are written as escaped surrogate pairs, which
+ * makes the encoding both valid UTF-8 and valid modified UTF-8, so one
+ * encoding can be framed or compressed.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import common.JSONConsts;
+
+public class ProtocolCodec {
+	// largest payload of a writeUTF frame
+	public static final int MAX_FRAME = 65535;
+	// largest encoded definition accepted, leaving room in a frame for the
+	// response around it
+	public static final int MAX_DEFINITION = MAX_FRAME - 256;
+	// output buffers grown beyond this for a large response are not kept
+	private static final int RETAINED_CAPACITY = 1 << 20;
+	// keys in a request beyond which it is left to org.json
+	private static final int MAX_KEYS = 16;
+
+	private static final ThreadLocal<ProtocolCodec> CODECS = ThreadLocal
+		.withInitial(ProtocolCodec::new);
+
+	private static final byte[] KEY_COMMAND = bytes(JSONConsts.COMMAND);
+	private static final byte[] KEY_WORD = bytes(JSONConsts.WORD);
+	private static final byte[] KEY_COMPRESS = bytes(JSONConsts.COMPRESS);
+	private static final byte[] KEY_OFFSET = bytes(JSONConsts.OFFSET);
+	private static final byte[] KEY_LIMIT = bytes(JSONConsts.LIMIT);
+	private static final byte[] KEY_STREAM = bytes(JSONConsts.STREAM);
+	private static final byte[] KEY_DICTIONARY = bytes(JSONConsts.DICTIONARY);
+	private static final byte[] VALUE_QUERY = bytes(JSONConsts.COMMAND_QUERY);
+	private static final byte[] VALUE_DEFLATE = bytes(JSONConsts.DEFLATE);
+
+	private static final byte[] QUERY_PREFIX = bytes(
+		"{\"" + JSONConsts.COMMAND + "\":\"" + JSONConsts.COMMAND_QUERY
+			+ "\",\"" + JSONConsts.CONTENT + "\":");
+	private static final byte[] VERSION_KEY = bytes(
+		",\"" + JSONConsts.VERSION + "\":");
+	private static final byte[] EPOCH_KEY = bytes(
+		",\"" + JSONConsts.EPOCH + "\":");
+	private static final byte[] HEX = bytes("0123456789abcdef");
+
+	// the request frame, with its two length bytes
+	private final byte[] in = new byte[2 + MAX_FRAME];
+	private int inEnd = 0;
+	private int pos = 0;
+	private char[] chars = new char[64];
+	// start and end of each key of the request, to find repeated keys
+	private final int[] keyBounds = new int[2 * MAX_KEYS];
+	private int keys = 0;
+
+	// the encoded response, after two bytes reserved for the frame length
+	private byte[] out = new byte[2 + MAX_FRAME];
+	private int outEnd = 2;
+
+	// fields of the request last read
+	private boolean plainQuery = false;
+	private String word = null;
+	private boolean deflate = false;
+	private String dictionary = null;
+
+	private ProtocolCodec() {
+	}
+
+	/*
+	 * Gets this thread's codec
+	 */
+	public static ProtocolCodec get() {
+		return CODECS.get();
+	}
+
+	/*
+	 * Reads a request frame, scanning it for a plain query
+	 *
+	 * @param dis DataInputStream from the client
+	 */
+	public void readRequest(DataInputStream dis) throws IOException {
+		int length = dis.readUnsignedShort();
+		in[0] = (byte) (length >>> 8);
+		in[1] = (byte) length;
+		dis.readFully(in, 2, length);
+		inEnd = 2 + length;
+
+		plainQuery = false;
+		word = null;
+		deflate = false;
+		dictionary = null;
+		plainQuery = scanRequest();
+	}
+
+	/*
+	 * Returns true if the request last read was a query for all of a word's
+	 * definitions, which the codec has decoded
+	 */
+	public boolean isPlainQuery() {
+		return plainQuery;
+	}
+
+	/*
+	 * Gets the word of the plain query last read
+	 */
+	public String getWord() {
+		return word;
+	}
+
+	/*
+	 * Gets the name of the dictionary the plain query last read selects, or
+	 * null for the default dictionary
+	 */
+	public String getDictionary() {
+		return dictionary;
+	}
+
+	/*
+	 * Returns true if the plain query last read accepts a deflated response
+	 */
+	public boolean acceptsDeflate() {
+		return deflate;
+	}
+
+	/*
+	 * Parses the request last read with org.json, for requests other than
+	 * plain queries
+	 */
+	public JSONObject toJSON() throws IOException {
+		return new JSONObject(
+			new DataInputStream(new ByteArrayInputStream(in, 0, inEnd))
+				.readUTF());
+	}
+
+	/*
+	 * Encodes a query response, returning its length in bytes. The encoding
+	 * is read with getEncoded, from offset 2, until the next encode.
+	 *
+	 * @param definitions JSONArray of the word's definitions, or null if it
+	 * has none
+	 *
+	 * @param version long version of the word
+	 *
+	 * @param epoch long epoch of the version
+	 */
+	public int encodeQuery(JSONArray definitions, long version, long epoch) {
+		if (out.length > RETAINED_CAPACITY) {
+			out = new byte[2 + MAX_FRAME];
+		}
+		outEnd = 2;
+
+		put(QUERY_PREFIX);
+		if (definitions == null) {
+			put((byte) '[');
+			put((byte) ']');
+		} else {
+			writeArray(definitions);
+		}
+		put(VERSION_KEY);
+		writeLong(version);
+		put(EPOCH_KEY);
+		writeLong(epoch);
+		put((byte) '}');
+
+		return outEnd - 2;
+	}
+
+	/*
+	 * Gets the buffer holding the last encoding, from offset 2
+	 */
+	public byte[] getEncoded() {
+		return out;
+	}
+
+	/*
+	 * Gets the number of bytes writeUTF encodes s in, which is more than its
+	 * length once s has characters outside ASCII
+	 *
+	 * @param s String to measure
+	 */
+	public static int utfLength(String s) {
+		int length = s.length();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x800) {
+				length += 2;
+			} else if (c >= 0x80 || c == 0) {
+				length += 1;
+			}
+		}
+
+		return length;
+	}
+
+	/*
+	 * Returns true if definition is small enough to be sent in a frame
+	 *
+	 * @param definition JSONObject to measure
+	 */
+	public static boolean fits(JSONObject definition) {
+		return utfLength(definition.toString()) <= MAX_DEFINITION;
+	}
+
+	/*
+	 * Writes the last encoding as a writeUTF frame
+	 *
+	 * @param dos DataOutputStream to the client
+	 */
+	public void writeEncoded(DataOutputStream dos) throws IOException {
+		int length = outEnd - 2;
+		if (length > MAX_FRAME) {
+			throw new UTFDataFormatException(
+				"encoded string too long: " + length + " bytes");
+		}
+
+		out[0] = (byte) (length >>> 8);
+		out[1] = (byte) length;
+		dos.write(out, 0, outEnd);
+	}
+
+	/*
+	 * Scans the request frame for a plain query, returning false as soon as
+	 * it finds anything else. Every read is bounded by the frame, and a frame
+	 * is only taken as a plain query if org.json would parse it to the same
+	 * fields, so anything the scanner cannot be sure of, such as a nested
+	 * value, is left to org.json.
+	 */
+	private boolean scanRequest() {
+		boolean query = false;
+		keys = 0;
+
+		pos = 2;
+		skipWhitespace();
+		if (next() != '{') {
+			return false;
+		}
+		skipWhitespace();
+		if (peek() == '}') {
+			return false;
+		}
+
+		while (true) {
+			if (next() != '"') {
+				return false;
+			}
+			int keyStart = pos;
+			int b;
+			while ((b = next()) != '"') {
+				// escaped, control and non-ASCII keys are left to org.json
+				if (b < 0x20 || b >= 0x7F || b == '\\') {
+					return false;
+				}
+			}
+			int keyEnd = pos - 1;
+			if (!addKey(keyStart, keyEnd)) {
+				return false;
+			}
+			skipWhitespace();
+			if (next() != ':') {
+				return false;
+			}
+			skipWhitespace();
+
+			if (matches(keyStart, keyEnd, KEY_COMMAND)) {
+				query = peek() == '"' && matchesString(VALUE_QUERY);
+				if (!query) {
+					return false;
+				}
+			} else if (matches(keyStart, keyEnd, KEY_WORD)) {
+				if (peek() != '"') {
+					return false;
+				}
+				word = readString();
+				if (word == null) {
+					return false;
+				}
+			} else if (matches(keyStart, keyEnd, KEY_DICTIONARY)) {
+				if (peek() != '"') {
+					return false;
+				}
+				dictionary = readString();
+				if (dictionary == null) {
+					return false;
+				}
+			} else if (matches(keyStart, keyEnd, KEY_COMPRESS)) {
+				// a bare deflate is also read as the string by org.json
+				if (peek() != '"') {
+					return false;
+				} else if (matchesString(VALUE_DEFLATE)) {
+					deflate = true;
+				} else if (readString() == null) {
+					return false;
+				}
+			} else if (matches(keyStart, keyEnd, KEY_OFFSET)
+				|| matches(keyStart, keyEnd, KEY_LIMIT)
+				|| matches(keyStart, keyEnd, KEY_STREAM)) {
+				return false;
+			} else if (!skipValue()) {
+				return false;
+			}
+
+			skipWhitespace();
+			int separator = next();
+			if (separator == '}') {
+				break;
+			} else if (separator != ',') {
+				return false;
+			}
+			skipWhitespace();
+		}
+
+		skipWhitespace();
+		if (pos != inEnd || !query) {
+			return false;
+		}
+		if (word == null) {
+			word = "";
+		}
+
+		return true;
+	}
+
+	/*
+	 * Gets the byte at pos and moves past it, or -1 at the end of the frame
+	 */
+	private int next() {
+		return pos < inEnd ? in[pos++] & 0xFF : -1;
+	}
+
+	/*
+	 * Gets the byte at pos, or -1 at the end of the frame
+	 */
+	private int peek() {
+		return pos < inEnd ? in[pos] & 0xFF : -1;
+	}
+
+	/*
+	 * Records the key in the given range of the frame, returning false if
+	 * it has been seen before, as org.json rejects repeated keys, or if there
+	 * are too many keys to check cheaply
+	 */
+	private boolean addKey(int start, int end) {
+		if (keys == keyBounds.length / 2) {
+			return false;
+		}
+		for (int i = 0; i < keys; i++) {
+			int other = keyBounds[2 * i];
+			if (keyBounds[2 * i + 1] - other != end - start) {
+				continue;
+			}
+
+			int j = 0;
+			while (j < end - start && in[other + j] == in[start + j]) {
+				j++;
+			}
+			if (j == end - start) {
+				return false;
+			}
+		}
+		keyBounds[2 * keys] = start;
+		keyBounds[2 * keys + 1] = end;
+		keys++;
+
+		return true;
+	}
+
+	private void skipWhitespace() {
+		while (pos < inEnd && (in[pos] == ' ' || in[pos] == '\t'
+			|| in[pos] == '\n' || in[pos] == '\r')) {
+			pos++;
+		}
+	}
+
+	private boolean matches(int start, int end, byte[] expected) {
+		if (end - start != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			if (in[start + i] != expected[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * Returns true if the string at pos is exactly expected, without
+	 * escapes, leaving pos after it if so
+	 */
+	private boolean matchesString(byte[] expected) {
+		int end = pos + 1 + expected.length;
+		if (end >= inEnd || in[end] != '"'
+			|| !matches(pos + 1, end, expected)) {
+			return false;
+		}
+
+		pos = end + 1;
+		return true;
+	}
+
+	/*
+	 * Decodes the string at pos, or returns null if it is malformed, either
+	 * as modified UTF-8, which readUTF rejects, or as a JSON string, which
+	 * org.json rejects if it holds a raw NUL or line break
+	 */
+	private String readString() {
+		int length = 0;
+		pos++;
+		while (true) {
+			if (length == chars.length) {
+				char[] grown = new char[chars.length * 2];
+				System.arraycopy(chars, 0, grown, 0, length);
+				chars = grown;
+			}
+
+			int b = next();
+			int c;
+			if (b == '"') {
+				break;
+			} else if (b == '\\') {
+				c = readEscape();
+				if (c < 0) {
+					return null;
+				}
+				chars[length++] = (char) c;
+				continue;
+			} else if (b < 0x80) {
+				c = b;
+			} else if ((b & 0xE0) == 0xC0) {
+				int b2 = next();
+				if ((b2 & 0xC0) != 0x80) {
+					return null;
+				}
+				c = ((b & 0x1F) << 6) | (b2 & 0x3F);
+			} else if ((b & 0xF0) == 0xE0) {
+				int b2 = next();
+				int b3 = next();
+				if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) {
+					return null;
+				}
+				c = ((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F);
+			} else {
+				return null;
+			}
+
+			// the end of the frame is -1, so also ends the string here
+			if (c <= 0 || c == '\n' || c == '\r') {
+				return null;
+			}
+			chars[length++] = (char) c;
+		}
+
+		return new String(chars, 0, length);
+	}
+
+	private int readEscape() {
+		int b = next();
+		switch (b) {
+		case '"':
+		case '\\':
+		case '/':
+			return b;
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int c = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(next(), 16);
+				if (digit < 0) {
+					return -1;
+				}
+				c = (c << 4) | digit;
+			}
+			return c;
+		default:
+			return -1;
+		}
+	}
+
+	/*
+	 * Skips the string or bare number or literal at pos, returning false if
+	 * it is malformed. Objects and arrays are not skipped, as checking them
+	 * as org.json does, repeated keys and all, is left to org.json.
+	 */
+	private boolean skipValue() {
+		if (peek() == '"') {
+			return readString() != null;
+		}
+
+		int start = pos;
+		while (isBare(peek())) {
+			pos++;
+		}
+
+		return pos > start;
+	}
+
+	/*
+	 * Returns true if b may be part of a bare value, such as a number, true,
+	 * false or null, which org.json reads as a number or a string
+	 */
+	private static boolean isBare(int b) {
+		return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z')
+			|| (b >= 'A' && b <= 'Z') || b == '+' || b == '-' || b == '.';
+	}
+
+	private void writeValue(Object value) {
+		if (value instanceof String) {
+			writeString((String) value);
+		} else if (value instanceof JSONObject) {
+			writeObject((JSONObject) value);
+		} else if (value instanceof JSONArray) {
+			writeArray((JSONArray) value);
+		} else {
+			writeString(JSONObject.valueToString(value), false);
+		}
+	}
+
+	private void writeObject(JSONObject object) {
+		put((byte) '{');
+		boolean first = true;
+		for (String key : object.keySet()) {
+			if (!first) {
+				put((byte) ',');
+			}
+			writeString(key);
+			put((byte) ':');
+			writeValue(object.opt(key));
+			first = false;
+		}
+		put((byte) '}');
+	}
+
+	private void writeArray(JSONArray array) {
+		put((byte) '[');
+		for (int i = 0; i < array.length(); i++) {
+			if (i > 0) {
+				put((byte) ',');
+			}
+			writeValue(array.opt(i));
+		}
+		put((byte) ']');
+	}
+
+	private void writeString(String s) {
+		writeString(s, true);
+	}
+
+	/*
+	 * Writes s, as a quoted JSON string if quoted, or raw if not
+	 */
+	private void writeString(String s, boolean quoted) {
+		// at most six bytes per char, for an escape
+		ensureCapacity(s.length() * 6 + 2);
+		byte[] out = this.out;
+		int end = outEnd;
+
+		if (quoted) {
+			out[end++] = '"';
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				out[end++] = '\\';
+				out[end++] = (byte) c;
+			} else if (c < 0x20 || Character.isSurrogate(c)) {
+				out[end++] = '\\';
+				out[end++] = 'u';
+				out[end++] = HEX[c >>> 12];
+				out[end++] = HEX[(c >>> 8) & 0xF];
+				out[end++] = HEX[(c >>> 4) & 0xF];
+				out[end++] = HEX[c & 0xF];
+			} else if (c < 0x80) {
+				out[end++] = (byte) c;
+			} else if (c < 0x800) {
+				out[end++] = (byte) (0xC0 | (c >>> 6));
+				out[end++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				out[end++] = (byte) (0xE0 | (c >>> 12));
+				out[end++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+				out[end++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		if (quoted) {
+			out[end++] = '"';
+		}
+
+		outEnd = end;
+	}
+
+	private void writeLong(long value) {
+		if (value < 0) {
+			writeString(Long.toString(value), false);
+			return;
+		}
+
+		ensureCapacity(20);
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		for (int i = digits - 1; i >= 0; i--) {
+			out[outEnd + i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		outEnd += digits;
+	}
+
+	private void put(byte b) {
+		ensureCapacity(1);
+		out[outEnd++] = b;
+	}
+
+	private void put(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, out, outEnd, bytes.length);
+		outEnd += bytes.length;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (outEnd + extra > out.length) {
+			byte[] grown = new byte[Math.max(out.length * 2, outEnd + extra)];
+			System.arraycopy(out, 0, grown, 0, outEnd);
+			out = grown;
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -12,115 +12,337 @@ package server;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import common.JSONConsts;
 
-public class RequestHandler implements Runnable {
+public class RequestHandler implements WorkerThreadPool.Expirable {
+	private static final long DUMP_CHUNK_SIZE = 1 << 20;
+	// definitions read from the store at a time when streaming a query
+	private static final int STREAM_BATCH_SIZE = 64;
+	// encoded bytes of definitions per frame, keeping frames well within the
+	// 64 KiB limit of writeUTF
+	private static final int STREAM_FRAME_BYTES = 1 << 14;
+	// returned by getExpected for a malformed expected version
+	private static final long INVALID_VERSION = Long.MIN_VALUE;
+
 	private final Socket socket;
-	private final Dictionary dictionary;
+	private final ServerContext context;
+
+	// the dictionary the request selected, set once it has been acquired
+	private HostedDictionary hosted = null;
+	private Dictionary dictionary = null;
+
+	// set once the socket has been handed to a watch subscriber
+	private boolean detached = false;
 
 	/*
-	 * Creates a new RequestHandler
+	 * Creates a new RequestHandler for a request already admitted by the
+	 * context's AdmissionController
 	 * 
 	 * @param socket Socket to communicate to client with
 	 * 
-	 * @param dictionaary Dictionary to query
+	 * @param context ServerContext with the dictionaries to query
 	 */
-	public RequestHandler(Socket socket, Dictionary dictionary) {
+	public RequestHandler(Socket socket, ServerContext context) {
 		this.socket = socket;
-		this.dictionary = dictionary;
+		this.context = context;
 	}
 
 	/*
 	 * Runs the RequestHandler. The Request reads from its socket, generates
-	 * a response, then writes and closes the socket
+	 * a response, then writes and closes the socket. Requests that change the
+	 * dictionary are handed to the write lane once read, so that they never
+	 * hold up reads.
 	 */
 	public synchronized void run() {
+		long start = System.nanoTime();
+		JSONObject json = null;
+		boolean plainQuery = false;
+		try {
+			DataInputStream dis = new DataInputStream(socket.getInputStream());
+			ProtocolCodec codec = ProtocolCodec.get();
+			codec.readRequest(dis);
+			plainQuery = codec.isPlainQuery();
+			if (!plainQuery) {
+				json = codec.toJSON();
+			}
+		} catch (SocketTimeoutException ste) {
+			context.getReadTimeouts().increment();
+			Log.debug("Request read timed out", "client", getClient());
+		} catch (IOException ioe) {
+			printError(ioe);
+		} catch (Exception e) {
+			printError(e);
+		}
+
+		if (plainQuery) {
+			respond(null, start);
+		} else if (json == null) {
+			finish();
+		} else if (!isWrite(json.optString(JSONConsts.COMMAND))
+			|| !context.getWriters().add(new WriteTask(json, start))) {
+			respond(json, start);
+		}
+	}
+
+	/*
+	 * Processes a request that has been read and writes its response,
+	 * then closes the socket
+	 * 
+	 * @param json JSONObject request from the client, or null for a plain
+	 * query decoded by this thread's ProtocolCodec
+	 * 
+	 * @param start long nanoTime when the request started
+	 */
+	private void respond(JSONObject json, long start) {
 		try {
 			DataOutputStream dos = new DataOutputStream(
 				socket.getOutputStream());
-			DataInputStream dis = new DataInputStream(socket.getInputStream());
 
-			JSONObject json = new JSONObject(dis.readUTF());
-			JSONObject out = null;
-			switch (json.optString(JSONConsts.COMMAND)) {
+			JSONObject out = select(
+				json == null ? ProtocolCodec.get().getDictionary()
+					: json.opt(JSONConsts.DICTIONARY));
+			if (out != null) {
+				dos.writeUTF(out.toString());
+				dos.close();
+				return;
+			}
+
+			String command = json == null ? JSONConsts.COMMAND_QUERY
+				: json.optString(JSONConsts.COMMAND);
+			switch (command) {
 			case JSONConsts.COMMAND_ADD:
+				context.getMutated().record(json.optString(JSONConsts.WORD));
 				out = addDefiniton(json);
 				break;
 			case JSONConsts.COMMAND_DELETE:
+				context.getMutated().record(json.optString(JSONConsts.WORD));
 				out = deleteWord(json);
 				break;
+			case JSONConsts.COMMAND_REPLACE:
+				context.getMutated().record(json.optString(JSONConsts.WORD));
+				out = replaceDefinitions(json);
+				break;
 			case JSONConsts.COMMAND_QUERY:
-				out = queryDefinitons(json);
+				if (json == null) {
+					ProtocolCodec codec = ProtocolCodec.get();
+					context.getQueried().record(codec.getWord());
+					queryPlain(codec, dos);
+					break;
+				}
+
+				context.getQueried().record(json.optString(JSONConsts.WORD));
+				if (json.has(JSONConsts.OFFSET) || json.has(JSONConsts.LIMIT)
+					|| json.optBoolean(JSONConsts.STREAM)) {
+					out = queryRange(json, dos);
+				} else if (JSONConsts.DEFLATE
+					.equals(json.optString(JSONConsts.COMPRESS))) {
+					out = queryCompressed(json, dos);
+				} else {
+					out = queryDefinitons(json);
+				}
+				break;
+			case JSONConsts.COMMAND_STATS:
+				out = stats();
+				break;
+			case JSONConsts.COMMAND_DUMP:
+				dump(dos);
+				break;
+			case JSONConsts.COMMAND_IMPORT:
+				out = importDefinitions(json);
+				break;
+			case JSONConsts.COMMAND_TOP:
+				out = top();
+				break;
+			case JSONConsts.COMMAND_SYNC:
+				out = sync(json, dos);
+				break;
+			case JSONConsts.COMMAND_WATCH:
+				out = watch(json);
 				break;
 			default:
 				out = badRequest();
 			}
 
-			dos.writeUTF(out.toString());
+			// streamed responses have already been written
+			if (out != null) {
+				dos.writeUTF(out.toString());
+			}
 
-			System.out.println(
-				String.format(
-					"Serviced %s:%d",
-					socket.getInetAddress().getHostAddress(),
-					socket.getPort()));
+			Log.access(
+				"client",
+				getClient(),
+				"command",
+				command,
+				"micros",
+				(System.nanoTime() - start) / 1000);
 
-			dos.close();
-			dis.close();
+			if (!detached) {
+				dos.close();
+			}
 		} catch (IOException ioe) {
 			printError(ioe);
 		} catch (Exception e) {
 			printError(e);
 		} finally {
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (IOException ioe) {
-					printError(ioe);
-				}
+			finish();
+		}
+	}
+
+	/*
+	 * Acquires the dictionary the request selects, returning null once it has
+	 * been acquired, or an error if it is malformed or cannot be found
+	 * 
+	 * @param name Object name of the dictionary, or null for the default
+	 */
+	private JSONObject select(Object name) {
+		if (name != null && (!(name instanceof String)
+			|| !DictionaryRegistry.isValidName((String) name))) {
+			return badRequest();
+		}
+
+		try {
+			hosted = context.getDictionaries().acquire((String) name);
+		} catch (IOException ioe) {
+			printError(ioe);
+			return new JSONObject()
+				.put(JSONConsts.COMMAND, JSONConsts.COMMAND_ERROR).put(
+					JSONConsts.CONTENT,
+					String.format(
+						"dictionary could not be loaded (%s)",
+						ioe.getMessage()));
+		}
+
+		if (hosted == null) {
+			return new JSONObject()
+				.put(JSONConsts.COMMAND, JSONConsts.COMMAND_ERROR).put(
+					JSONConsts.CONTENT,
+					context.getDictionaries().canLoad()
+						? JSONConsts.DICTIONARY_UNKNOWN
+						: JSONConsts.DICTIONARIES_DISABLED);
+		}
+
+		dictionary = hosted.getDictionary();
+		return null;
+	}
+
+	/*
+	 * Releases the request's admission and dictionary, and closes its
+	 * socket, unless a watch subscriber has taken it over
+	 */
+	private void finish() {
+		context.getAdmission().release();
+		if (hosted != null) {
+			context.getDictionaries().release(hosted);
+		}
+		if (socket != null && !detached) {
+			try {
+				socket.close();
+			} catch (IOException ioe) {
+				printError(ioe);
 			}
 		}
 	}
 
 	/*
-	 * Prints a formatted error message to the console
+	 * Returns true if command changes the dictionary, and so runs in the
+	 * write lane
+	 * 
+	 * @param command String command of the request
+	 */
+	private static boolean isWrite(String command) {
+		switch (command) {
+		case JSONConsts.COMMAND_ADD:
+		case JSONConsts.COMMAND_DELETE:
+		case JSONConsts.COMMAND_REPLACE:
+		case JSONConsts.COMMAND_IMPORT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * Abandons the request after it waited too long to start, by which time
+	 * its client has likely given up, answering it as if the server was busy
+	 */
+	@Override
+	public void expire() {
+		Log.debug("Request expired in queue", "client", getClient());
+		try {
+			DictionaryServer.reject(socket, JSONConsts.SERVER_BUSY);
+		} finally {
+			context.getAdmission().release();
+		}
+	}
+
+	/*
+	 * Logs an error that occurred while handling the request
 	 * 
 	 * @param e Exception from the error
 	 */
 	private void printError(Exception e) {
-		System.err.format(
-			"%s:%d: %s\n",
-			socket.getInetAddress().getHostAddress(),
-			socket.getPort(),
-			e.getMessage());
-		e.printStackTrace();
+		Log.error("There was an error handling a request", e, "client",
+			getClient());
+	}
+
+	/*
+	 * Gets the address of the client in host:port form
+	 */
+	private String getClient() {
+		return socket.getInetAddress().getHostAddress() + ":"
+			+ socket.getPort();
 	}
 
 	/*
 	 * Deletes a word and returns a JSON Object, detailing if the word was added
-	 * or updated
+	 * or updated, and the word's version. The request may expect the word to
+	 * be at a version, or absent.
 	 * 
 	 * @param json JSONObject with function parameters
 	 */
 	private JSONObject addDefiniton(JSONObject json) {
+		long expected = getExpected(json);
+		if (expected == INVALID_VERSION) {
+			return badRequest();
+		}
+
 		JSONObject out = new JSONObject();
 		out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_ADD);
 
 		String word = json.optString(JSONConsts.WORD);
 		JSONObject content = json.optJSONObject(JSONConsts.CONTENT);
+		if (content != null && !ProtocolCodec.fits(content)) {
+			return tooLong();
+		}
 
-		if (content != null && word != null && !word.isEmpty()
-			&& content.has(JSONConsts.WORD_DEFINITION)
-			&& !content.getString(JSONConsts.WORD_DEFINITION).isEmpty()) {
-			if (dictionary.addDefintion(word, content)) {
+		if (word != null && !word.isEmpty() && isDefinition(content)) {
+			Dictionary.WriteResult result = dictionary
+				.addDefinition(word, content, expected);
+			if (result.isConflict()) {
+				out.put(JSONConsts.CONTENT, JSONConsts.WORD_CONFLICT);
+			} else if (result.existed()) {
 				out.put(JSONConsts.CONTENT, JSONConsts.WORD_UPDATED);
 			} else {
 				out.put(JSONConsts.CONTENT, JSONConsts.WORD_ADDED);
 			}
+			out.put(JSONConsts.VERSION, result.getVersion())
+				.put(JSONConsts.EPOCH, dictionary.getEpoch());
 		} else {
 			out.put(JSONConsts.CONTENT, JSONConsts.WORD_EMPTY);
 		}
@@ -130,26 +352,143 @@ public class RequestHandler implements Runnable {
 
 	/*
 	 * Deletes a word and returns a JSON Object, detailing if the word was
-	 * deleted or not
+	 * deleted or not, and the word's version. The request may expect the
+	 * word to be at a version.
 	 * 
 	 * @param json JSONObject with function parameters
 	 */
 	private JSONObject deleteWord(JSONObject json) {
+		long expected = getExpected(json);
+		if (expected == INVALID_VERSION || expected == Dictionary.ABSENT) {
+			return badRequest();
+		}
+
 		JSONObject out = new JSONObject();
 		out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_DELETE);
 
 		String word = json.optString(JSONConsts.WORD);
-		if (dictionary.deleteWord(word)) {
+		Dictionary.WriteResult result = dictionary.deleteWord(word, expected);
+		if (result.isConflict()) {
+			out.put(JSONConsts.CONTENT, JSONConsts.WORD_CONFLICT);
+		} else if (result.existed()) {
 			out.put(JSONConsts.CONTENT, JSONConsts.WORD_DELETED);
 		} else {
 			out.put(JSONConsts.CONTENT, JSONConsts.WORD_UNKNOWN);
 		}
+		out.put(JSONConsts.VERSION, result.getVersion())
+			.put(JSONConsts.EPOCH, dictionary.getEpoch());
 
 		return out;
 	}
 
 	/*
-	 * Creates a JSON Object with the definitions associated with word
+	 * Replaces all the definitions of a word in one atomic change and
+	 * returns a JSON Object, detailing if the word was added, updated or
+	 * deleted, and the word's version. The request may expect the word to be
+	 * at a version, or absent.
+	 * 
+	 * @param json JSONObject with function parameters
+	 */
+	private JSONObject replaceDefinitions(JSONObject json) {
+		long expected = getExpected(json);
+		String word = json.optString(JSONConsts.WORD);
+		Object content = json.opt(JSONConsts.CONTENT);
+		if (content instanceof JSONObject) {
+			content = new JSONArray().put(content);
+		}
+		if (expected == INVALID_VERSION || word.isEmpty()
+			|| !(content instanceof JSONArray)) {
+			return badRequest();
+		}
+
+		List<JSONObject> definitions = new ArrayList<JSONObject>();
+		for (Object definition : (JSONArray) content) {
+			if (!(definition instanceof JSONObject)
+				|| !isDefinition((JSONObject) definition)) {
+				return new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_REPLACE)
+					.put(JSONConsts.CONTENT, JSONConsts.WORD_EMPTY);
+			}
+			if (!ProtocolCodec.fits((JSONObject) definition)) {
+				return tooLong();
+			}
+			definitions.add((JSONObject) definition);
+		}
+
+		JSONObject out = new JSONObject();
+		out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_REPLACE);
+
+		Dictionary.WriteResult result = dictionary
+			.replaceDefinitions(word, definitions, expected);
+		if (result.isConflict()) {
+			out.put(JSONConsts.CONTENT, JSONConsts.WORD_CONFLICT);
+		} else if (definitions.isEmpty()) {
+			out.put(
+				JSONConsts.CONTENT,
+				result.existed() ? JSONConsts.WORD_DELETED
+					: JSONConsts.WORD_UNKNOWN);
+		} else {
+			out.put(
+				JSONConsts.CONTENT,
+				result.existed() ? JSONConsts.WORD_UPDATED
+					: JSONConsts.WORD_ADDED);
+		}
+		out.put(JSONConsts.VERSION, result.getVersion())
+			.put(JSONConsts.EPOCH, dictionary.getEpoch());
+
+		return out;
+	}
+
+	/*
+	 * Returns true if content is a definition with non-empty text
+	 * 
+	 * @param content JSONObject to check, may be null
+	 */
+	private static boolean isDefinition(JSONObject content) {
+		return content != null && content.has(JSONConsts.WORD_DEFINITION)
+			&& !content.optString(JSONConsts.WORD_DEFINITION).isEmpty();
+	}
+
+	/*
+	 * Gets the version a conditional write expects its word to be at: the
+	 * number given, Dictionary.ABSENT for "absent", Dictionary.ANY_VERSION
+	 * if none is given, or INVALID_VERSION if it is malformed. A number must
+	 * be an integer, and come with the epoch it was read in, and is
+	 * Dictionary.OTHER_EPOCH if that is not the dictionary's, as its versions
+	 * have since restarted.
+	 * 
+	 * @param json JSONObject with function parameters
+	 */
+	private long getExpected(JSONObject json) {
+		Object expect = json.opt(JSONConsts.EXPECT);
+		Object epoch = json.opt(JSONConsts.EPOCH);
+		if (expect == null) {
+			return Dictionary.ANY_VERSION;
+		} else if (JSONConsts.ABSENT.equals(expect)) {
+			return Dictionary.ABSENT;
+		} else if (isInteger(expect) && ((Number) expect).longValue() >= 0
+			&& isInteger(epoch)) {
+			return ((Number) epoch).longValue() == dictionary.getEpoch()
+				? ((Number) expect).longValue()
+				: Dictionary.OTHER_EPOCH;
+		}
+
+		return INVALID_VERSION;
+	}
+
+	/*
+	 * Returns true if value is a whole number that fits in a long, which
+	 * org.json parses as an Integer or a Long, and never truncates
+	 * 
+	 * @param value Object parsed by org.json, may be null
+	 */
+	private static boolean isInteger(Object value) {
+		return value instanceof Integer || value instanceof Long;
+	}
+
+	/*
+	 * Creates a JSON Object with the definitions associated with word, and
+	 * the word's version for conditional writes
 	 * 
 	 * @param json JSONObject with function parameters
 	 */
@@ -157,8 +496,12 @@ public class RequestHandler implements Runnable {
 		JSONObject out = new JSONObject();
 		out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_QUERY);
 
-		JSONArray content = dictionary
-			.getDefinitions(json.optString(JSONConsts.WORD));
+		// the version is read first, so it is never newer than the
+		// definitions read
+		String word = json.optString(JSONConsts.WORD);
+		out.put(JSONConsts.VERSION, dictionary.getWordVersion(word))
+			.put(JSONConsts.EPOCH, dictionary.getEpoch());
+		JSONArray content = dictionary.getDefinitions(word);
 		if (content == null) {
 			out.put(JSONConsts.CONTENT, new JSONArray());
 		} else {
@@ -168,6 +511,474 @@ public class RequestHandler implements Runnable {
 		return out;
 	}
 
+	/*
+	 * Writes the response to a plain query decoded by codec, encoding it
+	 * straight into the codec's buffer. If the client accepts deflated
+	 * responses, large responses are deflated as in queryCompressed.
+	 * 
+	 * @param codec ProtocolCodec that read the query
+	 * 
+	 * @param dos DataOutputStream to the client
+	 */
+	private void queryPlain(ProtocolCodec codec, DataOutputStream dos)
+		throws IOException {
+		String word = codec.getWord();
+
+		if (codec.acceptsDeflate()) {
+			ResponseCompressor compressor = hosted.getCompressor();
+			byte[] compressed = compressor.getCached(word);
+			if (compressed == null) {
+				long generation = compressor.getGeneration();
+				int length = encodeQuery(codec, word);
+				compressed = compressor.compressQuery(
+					word,
+					codec.getEncoded(),
+					2,
+					length,
+					generation);
+			}
+			if (compressed != null) {
+				writeCompressed(dos, JSONConsts.COMMAND_QUERY, compressed);
+				return;
+			}
+		} else {
+			encodeQuery(codec, word);
+		}
+
+		codec.writeEncoded(dos);
+	}
+
+	/*
+	 * Encodes the query response for word with codec, returning its length
+	 * 
+	 * @param codec ProtocolCodec to encode with
+	 * 
+	 * @param word String that was queried
+	 */
+	private int encodeQuery(ProtocolCodec codec, String word) {
+		// the version is read first, so it is never newer than the
+		// definitions read
+		long version = dictionary.getWordVersion(word);
+		return codec.encodeQuery(
+			dictionary.getDefinitions(word),
+			version,
+			dictionary.getEpoch());
+	}
+
+	/*
+	 * Queries the definitions of a word for a client that accepts deflated
+	 * responses. Large responses are written as a JSON header with their
+	 * encoding and length, followed by the deflated response, and null is
+	 * returned; smaller responses are returned to be sent as usual.
+	 * 
+	 * @param json JSONObject with function parameters
+	 * 
+	 * @param dos DataOutputStream to the client
+	 */
+	private JSONObject queryCompressed(JSONObject json, DataOutputStream dos)
+		throws IOException {
+		ResponseCompressor compressor = hosted.getCompressor();
+		String word = json.optString(JSONConsts.WORD);
+
+		byte[] compressed = compressor.getCached(word);
+		if (compressed == null) {
+			long generation = compressor.getGeneration();
+			JSONObject out = queryDefinitons(json);
+			compressed = compressor
+				.compressQuery(word, out.toString(), generation);
+			if (compressed == null) {
+				return out;
+			}
+		}
+
+		writeCompressed(dos, JSONConsts.COMMAND_QUERY, compressed);
+
+		return null;
+	}
+
+	/*
+	 * Queries a range of the definitions of a word, given by an optional
+	 * offset and limit, along with the total number of definitions. If the
+	 * request asks for a stream, a header with the total and the number of
+	 * definitions to follow is written, then the definitions in as many
+	 * frames as needed, and null is returned; otherwise the page is returned.
+	 * 
+	 * @param json JSONObject with function parameters
+	 * 
+	 * @param dos DataOutputStream to the client
+	 */
+	private JSONObject queryRange(JSONObject json, DataOutputStream dos)
+		throws IOException {
+		String word = json.optString(JSONConsts.WORD);
+		int offset = json.optInt(JSONConsts.OFFSET, 0);
+		int limit = json.optInt(JSONConsts.LIMIT, Integer.MAX_VALUE);
+		if (offset < 0 || limit < 0) {
+			return badRequest();
+		}
+
+		// every read is from the same snapshot, so frames are consistent
+		long version = dictionary.getWordVersion(word);
+		DictionaryStore.Snapshot snapshot = dictionary.snapshotWord(word);
+		int total = snapshot.countDefinitions(word);
+		int count = (int) Math
+			.max(0, Math.min((long) total - offset, limit));
+
+		JSONObject out = new JSONObject();
+		out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_QUERY);
+
+		if (!json.optBoolean(JSONConsts.STREAM)) {
+			out.put(
+				JSONConsts.CONTENT,
+				snapshot.getDefinitions(word, offset, count))
+				.put(JSONConsts.OFFSET, offset).put(JSONConsts.TOTAL, total)
+				.put(JSONConsts.VERSION, version)
+				.put(JSONConsts.EPOCH, dictionary.getEpoch());
+			return out;
+		}
+
+		out.put(
+			JSONConsts.CONTENT,
+			new JSONObject().put(JSONConsts.TOTAL, total)
+				.put(JSONConsts.OFFSET, offset).put(JSONConsts.COUNT, count)
+				.put(JSONConsts.VERSION, version)
+				.put(JSONConsts.EPOCH, dictionary.getEpoch()));
+		dos.writeUTF(out.toString());
+		dos.flush();
+
+		boolean compress = JSONConsts.DEFLATE
+			.equals(json.optString(JSONConsts.COMPRESS));
+		JSONArray frame = new JSONArray();
+		int frameBytes = 0;
+		for (int i = 0; i < count; i += STREAM_BATCH_SIZE) {
+			JSONArray batch = snapshot.getDefinitions(
+				word,
+				offset + i,
+				Math.min(STREAM_BATCH_SIZE, count - i));
+			for (Object definition : batch) {
+				// with the comma separating it from the one before
+				int bytes = ProtocolCodec.utfLength(definition.toString()) + 1;
+				if (frameBytes + bytes > STREAM_FRAME_BYTES
+					&& frame.length() > 0) {
+					writeFrame(dos, frame, compress);
+					frame = new JSONArray();
+					frameBytes = 0;
+				}
+
+				// loaded from a file before definitions were limited, and too
+				// long for any frame, so the stream ends with an error
+				if (bytes > ProtocolCodec.MAX_DEFINITION) {
+					dos.writeUTF(tooLong().toString());
+					dos.flush();
+					return null;
+				}
+
+				frame.put(definition);
+				frameBytes += bytes;
+			}
+		}
+		if (frame.length() > 0) {
+			writeFrame(dos, frame, compress);
+		}
+
+		return null;
+	}
+
+	/*
+	 * Writes a frame of a streamed query, deflated if the client accepts it
+	 * and the frame is large enough
+	 * 
+	 * @param dos DataOutputStream to the client
+	 * 
+	 * @param definitions JSONArray of the definitions in the frame
+	 * 
+	 * @param compress boolean true if the client accepts deflated frames
+	 */
+	private void writeFrame(DataOutputStream dos, JSONArray definitions,
+		boolean compress) throws IOException {
+		JSONObject frame = new JSONObject();
+		frame.put(JSONConsts.COMMAND, JSONConsts.COMMAND_QUERY)
+			.put(JSONConsts.CONTENT, definitions);
+
+		byte[] compressed = compress
+			? hosted.getCompressor().compress(frame.toString())
+			: null;
+		if (compressed != null) {
+			writeCompressed(dos, JSONConsts.COMMAND_QUERY, compressed);
+		} else {
+			dos.writeUTF(frame.toString());
+		}
+		dos.flush();
+	}
+
+	/*
+	 * Writes a deflated response: a JSON header with its encoding and length,
+	 * followed by the deflated bytes
+	 * 
+	 * @param dos DataOutputStream to the client
+	 * 
+	 * @param command String command of the response
+	 * 
+	 * @param compressed byte[] deflated response
+	 */
+	private void writeCompressed(DataOutputStream dos, String command,
+		byte[] compressed) throws IOException {
+		JSONObject header = new JSONObject();
+		header.put(JSONConsts.COMMAND, command).put(
+			JSONConsts.CONTENT,
+			new JSONObject().put(JSONConsts.ENCODING, JSONConsts.DEFLATE)
+				.put(JSONConsts.LENGTH, compressed.length));
+		dos.writeUTF(header.toString());
+		dos.write(compressed);
+	}
+
+	/*
+	 * Creates a JSON Object with the server's counters
+	 */
+	private JSONObject stats() {
+		JSONObject content = new JSONObject();
+		content.put("admission", context.getAdmission().toJSON())
+			.put(
+				"lanes",
+				new JSONObject().put("read", context.getWorkers().toJSON())
+					.put("write", context.getWriters().toJSON()))
+			.put("compression", hosted.getCompressor().toJSON())
+			.put("sync", hosted.getChanges().toJSON())
+			.put("watch", hosted.getWatchers().toJSON())
+			.put("dictionaries", context.getDictionaries().toJSON())
+			.put("read_timeouts", context.getReadTimeouts().sum());
+
+		JSONObject out = new JSONObject();
+		out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_STATS)
+			.put(JSONConsts.CONTENT, content);
+
+		return out;
+	}
+
+	/*
+	 * Bulk imports definitions and returns a JSON Object reporting how many
+	 * were imported. The content is either an array of records or the path
+	 * of a file in the server's import directory. Every failure to import a
+	 * file gets the same answer, so that clients cannot probe for files.
+	 * 
+	 * @param json JSONObject with function parameters
+	 */
+	private JSONObject importDefinitions(JSONObject json) {
+		BulkImporter importer = new BulkImporter(dictionary);
+		Object content = json.opt(JSONConsts.CONTENT);
+
+		JSONObject report = null;
+		if (content instanceof JSONArray) {
+			report = importer.importRecords((JSONArray) content);
+		} else if (content instanceof String) {
+			Path directory = context.getImportDirectory();
+			if (directory == null) {
+				return new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_ERROR)
+					.put(JSONConsts.CONTENT, JSONConsts.IMPORT_DISABLED);
+			}
+
+			try {
+				report = importer
+					.importFile(resolveImport(directory, (String) content));
+			} catch (IOException | InvalidPathException e) {
+				Log.warn("Import failed", "client", getClient(), "file",
+					content, "error", e.getMessage());
+				return new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_ERROR)
+					.put(JSONConsts.CONTENT, JSONConsts.IMPORT_FAILED);
+			}
+		} else {
+			return badRequest();
+		}
+
+		Log.info("Imported definitions", "report", report);
+
+		JSONObject out = new JSONObject();
+		out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_IMPORT)
+			.put(JSONConsts.CONTENT, report);
+
+		return out;
+	}
+
+	/*
+	 * Resolves a file to import against the import directory, throwing if it
+	 * does not exist or lies outside it. Links are followed before checking,
+	 * so that neither ".." nor a link can lead out of the directory.
+	 * 
+	 * @param directory Path of the import directory, as a real path
+	 * 
+	 * @param name String path of the file, relative to directory
+	 */
+	private static Path resolveImport(Path directory, String name)
+		throws IOException {
+		Path file = directory.resolve(name).normalize().toRealPath();
+		if (!file.startsWith(directory) || !Files.isRegularFile(file)) {
+			throw new IOException("Not a file in the import directory");
+		}
+
+		return file;
+	}
+
+	/*
+	 * Streams the most recent dump of the dictionary to the client: a JSON
+	 * header with its length, followed by the raw JSON bytes. The file is
+	 * sent with zero-copy transfers in chunks where the socket allows it.
+	 * 
+	 * @param dos DataOutputStream to the client
+	 */
+	private void dump(DataOutputStream dos) throws IOException {
+		DumpCache.Dump dump = hosted.getDumps().acquire();
+		try (FileChannel file = FileChannel
+			.open(dump.getFile(), StandardOpenOption.READ)) {
+			long length = file.size();
+
+			JSONObject out = new JSONObject();
+			out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_DUMP).put(
+				JSONConsts.CONTENT,
+				new JSONObject().put(JSONConsts.LENGTH, length)
+					.put(JSONConsts.VERSION, dump.getVersion())
+					.put(JSONConsts.EPOCH, hosted.getChanges().getEpoch()));
+			dos.writeUTF(out.toString());
+			dos.flush();
+
+			SocketChannel channel = socket.getChannel();
+			if (channel != null) {
+				long position = 0;
+				while (position < length) {
+					position += file.transferTo(
+						position,
+						Math.min(DUMP_CHUNK_SIZE, length - position),
+						channel);
+				}
+			} else {
+				InputStream is = Channels.newInputStream(file);
+				byte[] buffer = new byte[(int) DUMP_CHUNK_SIZE];
+				int read;
+				while ((read = is.read(buffer)) != -1) {
+					dos.write(buffer, 0, read);
+				}
+			}
+		} finally {
+			dump.release();
+		}
+	}
+
+	/*
+	 * Gets the changes made since the version a replica last saw, deflated if
+	 * the client accepts it and they are large enough. If the changes are no
+	 * longer held, the client is told to reset by reloading the dictionary
+	 * with a dump.
+	 * 
+	 * @param json JSONObject with function parameters
+	 * 
+	 * @param dos DataOutputStream to the client
+	 */
+	private JSONObject sync(JSONObject json, DataOutputStream dos)
+		throws IOException {
+		if (!json.has(JSONConsts.EPOCH) || !json.has(JSONConsts.VERSION)) {
+			return badRequest();
+		}
+
+		JSONObject content = hosted.getChanges().since(
+			json.optLong(JSONConsts.EPOCH),
+			json.optLong(JSONConsts.VERSION),
+			STREAM_FRAME_BYTES);
+
+		JSONObject out = new JSONObject();
+		out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_SYNC).put(
+			JSONConsts.CONTENT,
+			content == null ? JSONConsts.SYNC_RESET : content);
+
+		byte[] compressed = JSONConsts.DEFLATE
+			.equals(json.optString(JSONConsts.COMPRESS))
+				? hosted.getCompressor().compress(out.toString())
+				: null;
+		if (compressed == null) {
+			return out;
+		}
+
+		writeCompressed(dos, JSONConsts.COMMAND_SYNC, compressed);
+
+		return null;
+	}
+
+	/*
+	 * Hands the connection to the WatchHub, which pushes changes to the
+	 * requested words and prefixes until the client disconnects, returning
+	 * null; or returns an error if the request is malformed or too many
+	 * clients are watching. A watching connection no longer counts towards
+	 * the admission limits.
+	 * 
+	 * @param json JSONObject with function parameters
+	 */
+	private JSONObject watch(JSONObject json) throws IOException {
+		JSONArray words = json.optJSONArray(JSONConsts.WORDS);
+		JSONArray prefixes = json.optJSONArray(JSONConsts.PREFIXES);
+		if (words == null && prefixes == null) {
+			return badRequest();
+		}
+
+		List<String> wordList = new ArrayList<String>();
+		List<String> prefixList = new ArrayList<String>();
+		for (Object word : words == null ? new JSONArray() : words) {
+			wordList.add(word.toString());
+		}
+		for (Object prefix : prefixes == null ? new JSONArray() : prefixes) {
+			prefixList.add(prefix.toString());
+		}
+
+		// watches last indefinitely, so are not subject to the read timeout
+		socket.setSoTimeout(0);
+		if (!hosted.getWatchers()
+			.subscribe(socket, wordList, prefixList, dictionary)) {
+			return new JSONObject()
+				.put(JSONConsts.COMMAND, JSONConsts.COMMAND_ERROR)
+				.put(JSONConsts.CONTENT, JSONConsts.SERVER_BUSY);
+		}
+
+		detached = true;
+		return null;
+	}
+
+	/*
+	 * Creates a JSON Object with the most queried and most mutated words
+	 */
+	private JSONObject top() {
+		JSONObject content = new JSONObject();
+		content.put("queried", context.getQueried().top())
+			.put("mutated", context.getMutated().top())
+			.put("window_millis", context.getQueried().getWindowMillis());
+
+		JSONObject out = new JSONObject();
+		out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_TOP)
+			.put(JSONConsts.CONTENT, content);
+
+		return out;
+	}
+
+	/*
+	 * Internal class for the rest of a write request, run in the write lane
+	 */
+	private class WriteTask implements WorkerThreadPool.Expirable {
+		private final JSONObject json;
+		private final long start;
+
+		private WriteTask(JSONObject json, long start) {
+			this.json = json;
+			this.start = start;
+		}
+
+		@Override
+		public void run() {
+			respond(json, start);
+		}
+
+		@Override
+		public void expire() {
+			RequestHandler.this.expire();
+		}
+	}
+
 	/*
 	 * Creates a bad request JSON Object
 	 */
@@ -178,4 +989,15 @@ public class RequestHandler implements Runnable {
 
 		return out;
 	}
+
+	/*
+	 * Creates a JSON Object for a definition too long to be sent in a frame
+	 */
+	private JSONObject tooLong() {
+		JSONObject out = new JSONObject();
+		out.put(JSONConsts.COMMAND, JSONConsts.COMMAND_ERROR)
+			.put(JSONConsts.CONTENT, JSONConsts.DEFINITION_TOO_LONG);
+
+		return out;
+	}
 }
@@ -0,0 +1,257 @@
+/*
+ * ResponseCompressor.java
+ *
+ * Deflates responses for clients that ask for compression, once they are
+ * large enough for it to pay off. The compressed query responses of hot
+ * words are cached, and a word's entry is dropped whenever the word changes.
+ * A deletion moves the version of every word without a change of its own,
+ * which cached responses carry, so it drops every entry.
+ *
+ * The cache is bounded; when full, entries not read since the last eviction
+ * are evicted first (the clock algorithm).
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+import org.json.JSONObject;
+
+public class ResponseCompressor implements DictionaryListener {
+	private static final int BUFFER_SIZE = 1 << 12;
+
+	// deflaters hold native memory, so each thread reuses its own
+	private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal
+		.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION));
+
+	private final int threshold;
+	private final int cacheCapacity;
+	private final Map<String, CachedResponse> cache = new ConcurrentHashMap<String, CachedResponse>();
+
+	// incremented on every change, so responses read before a change are
+	// never cached after it
+	private final AtomicLong generation = new AtomicLong();
+
+	private final LongAdder compressed = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+
+	/*
+	 * Creates a new ResponseCompressor
+	 *
+	 * @param threshold int size in bytes below which responses are sent
+	 * uncompressed
+	 *
+	 * @param cacheCapacity int number of compressed responses to cache (0
+	 * disables the cache)
+	 */
+	public ResponseCompressor(int threshold, int cacheCapacity) {
+		this.threshold = threshold;
+		this.cacheCapacity = cacheCapacity;
+	}
+
+	/*
+	 * Gets the cached compressed query response for word, or null if it is
+	 * not cached
+	 *
+	 * @param word String that was queried
+	 */
+	public byte[] getCached(String word) {
+		CachedResponse cached = cache.get(word);
+		if (cached == null) {
+			cacheMisses.increment();
+			return null;
+		}
+
+		cached.referenced = true;
+		cacheHits.increment();
+		return cached.bytes;
+	}
+
+	/*
+	 * Gets the current generation, to be read before the response to be
+	 * cached is built
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/*
+	 * Compresses the query response for word, returning null if it is too
+	 * small to be worth compressing. The result is cached unless the
+	 * dictionary has changed since generation.
+	 *
+	 * @param word String that was queried
+	 *
+	 * @param response String query response
+	 *
+	 * @param generation long read from getGeneration before building response
+	 */
+	public byte[] compressQuery(String word, String response,
+		long generation) {
+		byte[] raw = response.getBytes(StandardCharsets.UTF_8);
+		return compressQuery(word, raw, 0, raw.length, generation);
+	}
+
+	/*
+	 * Compresses the UTF-8 query response for word, held in a range of raw,
+	 * returning null if it is too small to be worth compressing. The result
+	 * is cached unless the dictionary has changed since generation.
+	 *
+	 * @param word String that was queried
+	 *
+	 * @param raw byte[] holding the query response
+	 *
+	 * @param offset int index of the response in raw
+	 *
+	 * @param length int length of the response in bytes
+	 *
+	 * @param generation long read from getGeneration before building response
+	 */
+	public byte[] compressQuery(String word, byte[] raw, int offset,
+		int length, long generation) {
+		byte[] bytes = compress(raw, offset, length);
+		if (bytes == null || cacheCapacity <= 0) {
+			return bytes;
+		}
+
+		if (cache.size() >= cacheCapacity) {
+			evict();
+		}
+		// checked while holding the entry, so a concurrent change either
+		// stops the put or removes the entry after it
+		cache.compute(
+			word,
+			(key, cached) -> this.generation.get() == generation
+				? new CachedResponse(bytes)
+				: cached);
+
+		return bytes;
+	}
+
+	/*
+	 * Compresses a response, returning null if it is too small to be worth
+	 * compressing
+	 *
+	 * @param response String to compress
+	 */
+	public byte[] compress(String response) {
+		byte[] raw = response.getBytes(StandardCharsets.UTF_8);
+		return compress(raw, 0, raw.length);
+	}
+
+	private byte[] compress(byte[] raw, int offset, int length) {
+		if (length < threshold) {
+			return null;
+		}
+
+		byte[] bytes = deflate(raw, offset, length);
+		compressed.increment();
+		bytesIn.add(length);
+		bytesOut.add(bytes.length);
+
+		return bytes;
+	}
+
+	@Override
+	public void changed(long version, String word, JSONObject definition) {
+		generation.incrementAndGet();
+		if (definition == null) {
+			cache.clear();
+		} else {
+			cache.remove(word);
+		}
+	}
+
+	/*
+	 * Returns the compression counters as a JSONObject
+	 */
+	public JSONObject toJSON() {
+		return new JSONObject().put("threshold", threshold)
+			.put("compressed", compressed.sum()).put("bytes_in", bytesIn.sum())
+			.put("bytes_out", bytesOut.sum()).put("cached", cache.size())
+			.put("cache_hits", cacheHits.sum())
+			.put("cache_misses", cacheMisses.sum());
+	}
+
+	/*
+	 * Deflates raw with this thread's Deflater
+	 *
+	 * @param raw byte[] to deflate
+	 */
+	public static byte[] deflate(byte[] raw) {
+		return deflate(raw, 0, raw.length);
+	}
+
+	/*
+	 * Deflates a range of raw with this thread's Deflater
+	 *
+	 * @param raw byte[] holding the bytes to deflate
+	 *
+	 * @param offset int index of the first byte
+	 *
+	 * @param length int number of bytes
+	 */
+	public static byte[] deflate(byte[] raw, int offset, int length) {
+		Deflater deflater = DEFLATERS.get();
+		deflater.reset();
+		deflater.setInput(raw, offset, length);
+		deflater.finish();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+			Math.max(64, length / 4));
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while (!deflater.finished()) {
+			out.write(buffer, 0, deflater.deflate(buffer));
+		}
+
+		return out.toByteArray();
+	}
+
+	/*
+	 * Evicts entries that have not been read since the last eviction, giving
+	 * the others a second chance
+	 */
+	private synchronized void evict() {
+		if (cache.size() < cacheCapacity) {
+			return;
+		}
+
+		int target = cacheCapacity - Math.max(1, cacheCapacity / 8);
+		// a second pass is needed if every entry had been read
+		for (int pass = 0; pass < 2 && cache.size() > target; pass++) {
+			Iterator<CachedResponse> it = cache.values().iterator();
+			while (it.hasNext() && cache.size() > target) {
+				CachedResponse cached = it.next();
+				if (cached.referenced) {
+					cached.referenced = false;
+				} else {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Internal class for a cached compressed response
+	 */
+	private static class CachedResponse {
+		private final byte[] bytes;
+		private volatile boolean referenced = false;
+
+		private CachedResponse(byte[] bytes) {
+			this.bytes = bytes;
+		}
+	}
+}
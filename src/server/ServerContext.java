@@ -0,0 +1,94 @@
+/*
+ * ServerContext.java
+ * 
+ * Container class for the shared state of the server, handed to each
+ * RequestHandler.
+ * 
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ServerContext {
+	private final DictionaryRegistry dictionaries;
+	private final AdmissionController admission;
+	private final HeavyHitters queried;
+	private final HeavyHitters mutated;
+	private final WorkerThreadPool workers;
+	private final WorkerThreadPool writers;
+	private final Path importDirectory;
+	private final LongAdder readTimeouts = new LongAdder();
+
+	/*
+	 * Creates a new ServerContext
+	 * 
+	 * @param dictionaries DictionaryRegistry of the dictionaries served to
+	 * clients
+	 * 
+	 * @param admission AdmissionController that admitted the server's requests
+	 * 
+	 * @param queried HeavyHitters tracking the words queried
+	 * 
+	 * @param mutated HeavyHitters tracking the words added to or deleted
+	 * 
+	 * @param workers WorkerThreadPool reading every request and running
+	 * those that only read the dictionary
+	 * 
+	 * @param writers WorkerThreadPool running requests that change a
+	 * dictionary
+	 * 
+	 * @param importDirectory Path of the only directory files may be
+	 * imported from, or null if clients may not import files
+	 */
+	public ServerContext(DictionaryRegistry dictionaries,
+		AdmissionController admission, HeavyHitters queried,
+		HeavyHitters mutated, WorkerThreadPool workers,
+		WorkerThreadPool writers, Path importDirectory) {
+		this.dictionaries = dictionaries;
+		this.admission = admission;
+		this.queried = queried;
+		this.mutated = mutated;
+		this.workers = workers;
+		this.writers = writers;
+		this.importDirectory = importDirectory;
+	}
+
+	public DictionaryRegistry getDictionaries() {
+		return dictionaries;
+	}
+
+	public AdmissionController getAdmission() {
+		return admission;
+	}
+
+	public HeavyHitters getQueried() {
+		return queried;
+	}
+
+	public HeavyHitters getMutated() {
+		return mutated;
+	}
+
+	public WorkerThreadPool getWorkers() {
+		return workers;
+	}
+
+	public WorkerThreadPool getWriters() {
+		return writers;
+	}
+
+	public Path getImportDirectory() {
+		return importDirectory;
+	}
+
+	/*
+	 * Gets the number of requests dropped because the client was too slow
+	 * to send them
+	 */
+	public LongAdder getReadTimeouts() {
+		return readTimeouts;
+	}
+}
@@ -1,52 +1,94 @@
 /*
  * ShutdownThread.java
  * 
- * Helper thread that writes the server's dictionary to a file when ran.
+ * Helper thread that shuts the server down gracefully when ran.
+ * It stops accepting connections, drains queued and in-flight requests up to
+ * a deadline, then writes the server's dictionaries to their files.
  * 
  * @author James Barnes (820946)
  */
 
 package server;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
 
 public class ShutdownThread extends Thread {
-	private final String filename;
-	private final Dictionary dictionary;
+	private final DictionaryRegistry dictionaries;
 	private final WorkerThreadPool workers;
+	private final WorkerThreadPool writers;
+	private final ServerSocketChannel serverChannel;
+	private final long drainTimeout;
 
 	/*
 	 * Create a ShutdownThread for various resources
 	 * 
-	 * @param fillename String where to save the Dictionary
+	 * @param dictionaries DictionaryRegistry whose loaded dictionaries to
+	 * save
 	 * 
-	 * @param dictionary Dictionary to save to file
+	 * @param workers WorkerThreadPool to drain, which may hand requests to
+	 * writers
 	 * 
-	 * @param workers WorkerThreadPool to interrupt the running of
+	 * @param writers WorkerThreadPool to drain once workers has finished
+	 * 
+	 * @param serverChannel ServerSocketChannel to stop accepting on
+	 * 
+	 * @param drainTimeout long milliseconds to wait for requests to finish
 	 */
-	public ShutdownThread(String filename, Dictionary dictionary,
-		WorkerThreadPool workers) {
-		this.filename = filename;
-		this.dictionary = dictionary;
+	public ShutdownThread(DictionaryRegistry dictionaries,
+		WorkerThreadPool workers, WorkerThreadPool writers,
+		ServerSocketChannel serverChannel, long drainTimeout) {
+		this.dictionaries = dictionaries;
 		this.workers = workers;
+		this.writers = writers;
+		this.serverChannel = serverChannel;
+		this.drainTimeout = drainTimeout;
 	}
 
 	public void run() {
 		System.out.println("Shutting down server.");
+		long start = System.currentTimeMillis();
 
-		workers.interrupt();
-
-		try (FileWriter writer = new FileWriter(filename)) {
-			System.out.println("Saving dictionary to file.");
-			writer.write(dictionary.getJSONString());
-			System.out.println("Dictionary saved to file.");
+		try {
+			serverChannel.close();
 		} catch (IOException ioe) {
-			System.err.println(
-				"There was an error that occured saving the dictionary file.");
-			ioe.printStackTrace();
+			Log.error("There was an error closing the server socket", ioe);
 		}
 
-		System.out.println("Server shut down.");
+		long deadline = start + drainTimeout;
+		drain(workers, deadline);
+		// the read lane has handed over every write it read
+		drain(writers, deadline);
+
+		// each dictionary is closed before it is saved, so stragglers can no
+		// longer change it and every acknowledged change is saved
+		dictionaries.saveAll();
+
+		System.out.format(
+			"Server shut down in %dms.\n",
+			System.currentTimeMillis() - start);
+		Log.close();
+	}
+
+	/*
+	 * Shuts down a pool and waits for its requests to finish, interrupting
+	 * them if they are still running at deadline
+	 * 
+	 * @param pool WorkerThreadPool to drain
+	 * 
+	 * @param deadline long time in milliseconds to wait until
+	 */
+	private static void drain(WorkerThreadPool pool, long deadline) {
+		pool.shutdown();
+		try {
+			if (!pool.awaitTermination(
+				Math.max(0, deadline - System.currentTimeMillis()))) {
+				System.out.println(
+					"Requests did not finish in time, interrupting them.");
+				pool.interrupt();
+			}
+		} catch (InterruptedException ie) {
+			pool.interrupt();
+		}
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,224 @@
+/*
+ * StorageBenchmark.java
+ *
+ * Measures the memory each storage engine needs to hold a dictionary, and
+ * the garbage collection its queries and additions cause. For each of the
+ * json, compact and offheap stores it reports the heap and direct memory
+ * retained once the dictionary is loaded, per word and per definition, then
+ * the collections and their total pause time over a mixed workload. Each
+ * store is measured in a JVM of its own, started with the same options, so
+ * that no earlier run is left in the heap. Run it with a fixed heap, such as
+ * java -Xms2g -Xmx2g -cp DictionaryServer.jar server.StorageBenchmark
+ * <dictionary-file> [operations]
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import common.JSONConsts;
+
+public class StorageBenchmark {
+	private static final String[] STORES = { DictionaryStore.JSON,
+		DictionaryStore.COMPACT, DictionaryStore.OFF_HEAP };
+	// one operation in this many adds a definition, the rest are queries
+	private static final int ADD_EVERY = 10;
+	private static final int GC_ROUNDS = 3;
+	// set on the JVM started to measure one store, to the store's name
+	private static final String STORE_PROPERTY = "storage.benchmark.store";
+
+	public static void main(String[] args)
+		throws IOException, InterruptedException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("usage: <dictionary-file> [operations]");
+			System.exit(1);
+		}
+
+		int operations = args.length == 2 ? Integer.parseInt(args[1])
+			: 1000000;
+		String store = System.getProperty(STORE_PROPERTY);
+		if (store != null) {
+			// started by the parent below to measure one store
+			run(store, args[0], operations);
+			return;
+		}
+
+		System.out.format(
+			"%-8s %8s %11s %14s %14s %10s %10s %8s %10s\n",
+			"store",
+			"words",
+			"definitions",
+			"heap_bytes",
+			"direct_bytes",
+			"bytes/word",
+			"bytes/def",
+			"gc_count",
+			"gc_millis");
+		for (String type : STORES) {
+			List<String> command = new ArrayList<String>();
+			command.add(
+				Paths.get(System.getProperty("java.home"), "bin", "java")
+					.toString());
+			command.addAll(
+				ManagementFactory.getRuntimeMXBean().getInputArguments());
+			command.add("-D" + STORE_PROPERTY + "=" + type);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(StorageBenchmark.class.getName());
+			command.add(args[0]);
+			command.add(Integer.toString(operations));
+			new ProcessBuilder(command).inheritIO().start().waitFor();
+		}
+	}
+
+	/*
+	 * Loads the dictionary into a store, measures what it retains, then runs
+	 * a workload on it and measures the collections it causes
+	 *
+	 * @param type String name of the storage engine
+	 *
+	 * @param filename String dictionary file
+	 *
+	 * @param operations int number of queries and additions to run
+	 */
+	private static void run(String type, String filename, int operations)
+		throws IOException {
+		long heapBefore = usedHeap();
+		long directBefore = usedDirect();
+
+		DictionaryStore store = DictionaryStore.forName(type, filename);
+		List<String> words = new ArrayList<String>();
+		int definitions = load(store, filename, words);
+		if (words.isEmpty()) {
+			words.add("word");
+		}
+
+		// the word list is also retained, but is small next to the store
+		long heap = usedHeap() - heapBefore;
+		long direct = usedDirect() - directBefore;
+
+		long gcCount = 0;
+		long gcMillis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+			.getGarbageCollectorMXBeans()) {
+			gcCount -= gc.getCollectionCount();
+			gcMillis -= gc.getCollectionTime();
+		}
+
+		Random random = new Random(42);
+		JSONObject definition = new JSONObject()
+			.put(JSONConsts.WORD_DEFINITION, "added by the benchmark")
+			.put(JSONConsts.WORD_AUTHOR, "benchmark");
+		long found = 0;
+		for (int i = 0; i < operations; i++) {
+			String word = words.get(random.nextInt(words.size()));
+			if (i % ADD_EVERY == 0) {
+				store.addDefinition(word, definition);
+			} else {
+				JSONArray result = store.getDefinitions(word);
+				found += result == null ? 0 : result.length();
+			}
+		}
+
+		for (GarbageCollectorMXBean gc : ManagementFactory
+			.getGarbageCollectorMXBeans()) {
+			gcCount += gc.getCollectionCount();
+			gcMillis += gc.getCollectionTime();
+		}
+
+		System.out.format(
+			"%-8s %8d %11d %14d %14d %10d %10d %8d %10d\n",
+			type,
+			words.size(),
+			definitions,
+			heap,
+			direct,
+			(heap + direct) / words.size(),
+			(heap + direct) / Math.max(1, definitions),
+			gcCount,
+			gcMillis);
+		if (found < 0) {
+			// keeps the queries from being optimised away
+			System.out.println(found);
+		}
+	}
+
+	/*
+	 * Loads the dictionary file into a store, returning its number of
+	 * definitions. The parsed file is only reachable within this method, so
+	 * it is garbage once it returns.
+	 *
+	 * @param store DictionaryStore to load
+	 *
+	 * @param filename String dictionary file
+	 *
+	 * @param words List to add the dictionary's words to
+	 */
+	private static int load(DictionaryStore store, String filename,
+		List<String> words) throws IOException {
+		try (InputStream is = new FileInputStream(filename)) {
+			JSONObject json = new JSONObject(new JSONTokener(is));
+			int definitions = 0;
+			for (String word : json.keySet()) {
+				words.add(word);
+				JSONArray array = json.optJSONArray(word);
+				definitions += array == null ? 1 : array.length();
+			}
+			store.load(json);
+
+			return definitions;
+		}
+	}
+
+	/*
+	 * Gets the heap in use once garbage has been collected
+	 */
+	private static long usedHeap() {
+		for (int i = 0; i < GC_ROUNDS; i++) {
+			System.gc();
+		}
+
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory
+			.getMemoryPoolMXBeans()) {
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (pool.getType() == MemoryType.HEAP && usage != null) {
+				used += usage.getUsed();
+			}
+		}
+
+		return used;
+	}
+
+	/*
+	 * Gets the direct memory in use, which holds the offheap store
+	 */
+	private static long usedDirect() {
+		for (BufferPoolMXBean pool : ManagementFactory
+			.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) {
+				return pool.getMemoryUsed();
+			}
+		}
+
+		return 0;
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ * WatchHub.java
+ *
+ * Pushes changes to clients watching words, or every word with a prefix,
+ * over connections they keep open. Subscriptions are indexed by word and by
+ * prefix, so a change only costs a lookup of the word and of each of its
+ * prefixes, however many clients are watching. A change is serialised once,
+ * by the first subscriber to send it, not while the dictionary is locked.
+ *
+ * Each subscriber has its own thread and a bounded queue of changes. When a
+ * slow subscriber's queue is full its changes are dropped, and it is sent
+ * the number dropped once it catches up, so it knows to query again. A
+ * change too long to be sent in a frame is counted as dropped in the same
+ * way. A subscriber that stops reading altogether would block its thread
+ * in a write, so a watchdog closes its connection once a write has been
+ * blocked for longer than the write timeout.
+ *
+ * @author James Barnes (820946)
+ */
+
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+import common.JSONConsts;
+
+public class WatchHub implements DictionaryListener {
+	// a subscriber idle this long is sent a ping, so that closed
+	// connections are noticed
+	private static final long PING_MILLIS = 15000;
+
+	// checks the subscribers of every hub for blocked writes
+	private static final ScheduledExecutorService WATCHDOG = Executors
+		.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "watch-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+	private final int maxSubscribers;
+	private final int bufferSize;
+	private final long writeTimeoutMillis;
+
+	private final Map<String, Set<Subscriber>> byWord = new ConcurrentHashMap<String, Set<Subscriber>>();
+	private final Map<String, Set<Subscriber>> byPrefix = new ConcurrentHashMap<String, Set<Subscriber>>();
+	private final AtomicInteger subscribers = new AtomicInteger();
+	private final AtomicLong subscriberIds = new AtomicLong();
+
+	private final LongAdder pushed = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder stalled = new LongAdder();
+
+	/*
+	 * Creates a new WatchHub
+	 *
+	 * @param maxSubscribers int number of connections that may watch at once
+	 *
+	 * @param bufferSize int number of changes queued for each subscriber
+	 * before further changes are dropped
+	 *
+	 * @param writeTimeoutMillis long milliseconds a write to a subscriber may
+	 * be blocked before its connection is closed
+	 */
+	public WatchHub(int maxSubscribers, int bufferSize,
+		long writeTimeoutMillis) {
+		this.maxSubscribers = maxSubscribers;
+		this.bufferSize = Math.max(1, bufferSize);
+		this.writeTimeoutMillis = Math.max(1, writeTimeoutMillis);
+	}
+
+	/*
+	 * Starts pushing changes to the words and prefixes to a client, on a
+	 * thread of its own that owns the socket from now on. The client is
+	 * first sent an acknowledgement with the dictionary's version and epoch,
+	 * taken once the subscription is in place, so every later change is
+	 * pushed. Changes up to that version may already have been queued, and
+	 * are skipped, so that the client is only sent changes after the version
+	 * acknowledged. Returns false, leaving the socket to the caller, if too
+	 * many clients are watching.
+	 *
+	 * @param socket Socket to the client
+	 *
+	 * @param words Collection of words to watch
+	 *
+	 * @param prefixes Collection of prefixes whose words to watch
+	 *
+	 * @param dictionary Dictionary being watched
+	 */
+	public boolean subscribe(Socket socket, Collection<String> words,
+		Collection<String> prefixes, Dictionary dictionary)
+		throws IOException {
+		if (subscribers.incrementAndGet() > maxSubscribers) {
+			subscribers.decrementAndGet();
+			rejected.increment();
+			return false;
+		}
+
+		// keys covered by a shorter prefix are dropped, so that no change is
+		// pushed to a subscriber twice
+		List<String> kept = new ArrayList<String>();
+		for (String prefix : new TreeSet<String>(prefixes)) {
+			if (kept.isEmpty() || !prefix.startsWith(kept.get(kept.size() - 1))) {
+				kept.add(prefix);
+			}
+		}
+		prefixes = kept;
+		words = new HashSet<String>(words);
+		words.removeIf(word -> isCovered(word, kept));
+
+		Subscriber subscriber = null;
+		try {
+			subscriber = new Subscriber(socket, words, prefixes);
+		} catch (IOException ioe) {
+			subscribers.decrementAndGet();
+			throw ioe;
+		}
+		for (String word : words) {
+			byWord.computeIfAbsent(word, w -> ConcurrentHashMap.newKeySet())
+				.add(subscriber);
+		}
+		for (String prefix : prefixes) {
+			byPrefix
+				.computeIfAbsent(prefix, p -> ConcurrentHashMap.newKeySet())
+				.add(subscriber);
+		}
+
+		subscriber.ackVersion = dictionary.getVersion();
+		subscriber.ack = new JSONObject()
+			.put(JSONConsts.COMMAND, JSONConsts.COMMAND_WATCH)
+			.put(JSONConsts.CONTENT, JSONConsts.OK)
+			.put(JSONConsts.VERSION, subscriber.ackVersion)
+			.put(JSONConsts.EPOCH, dictionary.getEpoch()).toString();
+		subscriber.watchdog = WATCHDOG.scheduleWithFixedDelay(
+			subscriber::checkStalled,
+			writeTimeoutMillis,
+			writeTimeoutMillis / 2 + 1,
+			TimeUnit.MILLISECONDS);
+		subscriber.start();
+
+		return true;
+	}
+
+	@Override
+	public void changed(long version, String word, JSONObject definition) {
+		if (subscribers.get() == 0) {
+			return;
+		}
+
+		Notification notification = null;
+		Set<Subscriber> watching = byWord.get(word);
+		if (watching != null) {
+			notification = new Notification(version, word, definition);
+			offer(watching, notification);
+		}
+
+		if (!byPrefix.isEmpty()) {
+			for (int i = 0; i <= word.length(); i++) {
+				watching = byPrefix.get(word.substring(0, i));
+				if (watching != null) {
+					if (notification == null) {
+						notification = new Notification(version, word,
+							definition);
+					}
+					offer(watching, notification);
+				}
+			}
+		}
+	}
+
+	private static boolean isCovered(String word, List<String> prefixes) {
+		for (String prefix : prefixes) {
+			if (word.startsWith(prefix)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void offer(Set<Subscriber> watching, Notification notification) {
+		for (Subscriber subscriber : watching) {
+			if (subscriber.queue.offer(notification)) {
+				pushed.increment();
+			} else {
+				subscriber.dropped.incrementAndGet();
+				dropped.increment();
+			}
+		}
+	}
+
+	private void unsubscribe(Subscriber subscriber) {
+		for (String word : subscriber.words) {
+			byWord.computeIfPresent(word, (w, watching) -> {
+				watching.remove(subscriber);
+				return watching.isEmpty() ? null : watching;
+			});
+		}
+		for (String prefix : subscriber.prefixes) {
+			byPrefix.computeIfPresent(prefix, (p, watching) -> {
+				watching.remove(subscriber);
+				return watching.isEmpty() ? null : watching;
+			});
+		}
+		subscribers.decrementAndGet();
+	}
+
+	/*
+	 * Gets the number of connections watching
+	 */
+	public int getSubscribers() {
+		return subscribers.get();
+	}
+
+	/*
+	 * Creates a JSON Object with the hub's counters
+	 */
+	public JSONObject toJSON() {
+		return new JSONObject().put("subscribers", subscribers.get())
+			.put("pushed", pushed.sum()).put("dropped", dropped.sum())
+			.put("rejected", rejected.sum()).put("stalled", stalled.sum());
+	}
+
+	/*
+	 * Internal class for a change to push, serialised on first use
+	 */
+	private static class Notification {
+		private final long version;
+		private final String word;
+		private final JSONObject definition;
+
+		// racy but benign: at worst two subscribers serialise it
+		private String frame = null;
+
+		private Notification(long version, String word,
+			JSONObject definition) {
+			this.version = version;
+			this.word = word;
+			this.definition = definition;
+		}
+
+		private String getFrame() {
+			String current = frame;
+			if (current == null) {
+				current = new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_WATCH)
+					.put(
+						JSONConsts.CONTENT,
+						ChangeLog.describe(version, word, definition))
+					.toString();
+				frame = current;
+			}
+
+			return current;
+		}
+	}
+
+	/*
+	 * Internal class for a watching client, with a thread that writes its
+	 * changes to it
+	 */
+	private class Subscriber extends Thread {
+		private final Socket socket;
+		private final DataOutputStream dos;
+		private final Collection<String> words;
+		private final Collection<String> prefixes;
+		private final BlockingQueue<Notification> queue = new ArrayBlockingQueue<Notification>(
+			bufferSize);
+		private final AtomicLong dropped = new AtomicLong();
+
+		private String ack = null;
+		// changes up to this version happened before the ack
+		private long ackVersion = 0;
+		private ScheduledFuture<?> watchdog = null;
+		// currentTimeMillis when the write in progress began, or 0
+		private volatile long writingSince = 0;
+
+		private Subscriber(Socket socket, Collection<String> words,
+			Collection<String> prefixes) throws IOException {
+			super("watch-" + subscriberIds.incrementAndGet());
+			this.socket = socket;
+			this.dos = new DataOutputStream(
+				new BufferedOutputStream(socket.getOutputStream()));
+			this.words = words;
+			this.prefixes = prefixes;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				send(ack, true);
+
+				while (true) {
+					long lost = dropped.getAndSet(0);
+					if (lost > 0) {
+						write(new JSONObject().put(JSONConsts.DROPPED, lost));
+					}
+
+					Notification notification = queue
+						.poll(PING_MILLIS, TimeUnit.MILLISECONDS);
+					if (notification == null) {
+						write(JSONConsts.WATCH_PING);
+						continue;
+					} else if (notification.version <= ackVersion) {
+						continue;
+					}
+
+					String frame = notification.getFrame();
+					if (ProtocolCodec
+						.utfLength(frame) > ProtocolCodec.MAX_FRAME) {
+						dropped.incrementAndGet();
+						WatchHub.this.dropped.increment();
+						continue;
+					}
+
+					// flushed once the queue is drained, batching bursts
+					send(frame, queue.isEmpty());
+				}
+			} catch (IOException ioe) {
+				Log.debug("Watcher disconnected", "thread", getName());
+			} catch (InterruptedException ie) {
+				/* shutting down */
+			} finally {
+				watchdog.cancel(false);
+				unsubscribe(this);
+				try {
+					socket.close();
+				} catch (IOException ioe) {
+					/* ignored */
+				}
+			}
+		}
+
+		private void write(Object content) throws IOException {
+			send(
+				new JSONObject()
+					.put(JSONConsts.COMMAND, JSONConsts.COMMAND_WATCH)
+					.put(JSONConsts.CONTENT, content).toString(),
+				true);
+		}
+
+		/*
+		 * Writes a frame, noting when the write began so that the watchdog
+		 * can tell if it is blocked
+		 *
+		 * @param frame String to write
+		 *
+		 * @param flush boolean true to flush it to the client
+		 */
+		private void send(String frame, boolean flush) throws IOException {
+			writingSince = System.currentTimeMillis();
+			try {
+				dos.writeUTF(frame);
+				if (flush) {
+					dos.flush();
+				}
+			} finally {
+				writingSince = 0;
+			}
+		}
+
+		/*
+		 * Closes the connection if a write has been blocked for longer than
+		 * the write timeout, as the client has stopped reading. The blocked
+		 * write then fails, and the thread exits.
+		 */
+		private void checkStalled() {
+			long since = writingSince;
+			if (since == 0
+				|| System.currentTimeMillis() - since <= writeTimeoutMillis) {
+				return;
+			}
+
+			stalled.increment();
+			Log.info("Watcher stalled", "thread", getName());
+			try {
+				socket.close();
+			} catch (IOException ioe) {
+				/* ignored */
+			}
+		}
+	}
+}
@@ -1,82 +1,511 @@
 /*
  * WorkerThreadPool.java
- * 
+ *
  * A thread pool implementation.
  * There is no bound on the number off queued tasks.
- * 
+ * Once shut down, the pool finishes its queued tasks and its threads exit.
+ *
+ * Each thread has its own queue, and idle threads steal from the others, so
+ * threads do not contend on a single queue. Tasks go to an idle thread if
+ * there is one, otherwise to the less loaded of two threads picked at
+ * random, and every queue runs in the order its tasks were added. The number of threads adapts to
+ * load within [minThreads, maxThreads]: a monitor adds a thread when tasks
+ * wait too long to start, and threads that stay idle retire.
+ * Tasks may be given a deadline, after which they are expired rather than
+ * run if they are still queued.
+ * A pool may yield to another: its threads hold back each task while the
+ * other pool has tasks waiting to start, for up to a limit, so that the
+ * other pool's tasks are run first when both are busy.
+ *
  * @author James Barnes (820946)
  */
 
 package server;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
 
 public class WorkerThreadPool {
-	private final BlockingQueue<Runnable> queue;
-	private final WorkerThread[] threads;
+	private static final long MONITOR_INTERVAL = 100;
+	private static final long GROW_WAIT_MILLIS = 10;
+	private static final long KEEP_ALIVE_MILLIS = 5000;
+	// how often a yielding thread checks whether it may go ahead
+	private static final long YIELD_CHECK_NANOS = TimeUnit.MICROSECONDS
+		.toNanos(200);
+
+	private final String name;
+	private final int minThreads;
+	private final int maxThreads;
+	private final long deadlineNanos;
+	// pool whose waiting tasks go first, or null
+	private final WorkerThreadPool yieldTo;
+	private final long yieldNanos;
+
+	// replaced, never modified, when threads start or retire
+	private volatile WorkerThread[] threads = new WorkerThread[0];
+	private final Queue<WorkerThread> idle = new ConcurrentLinkedQueue<WorkerThread>();
+	private final AtomicInteger pending = new AtomicInteger();
+	// tasks taken from the queues but held back by yieldToOther, kept out of
+	// pending so that idle threads still park while they are held
+	private final AtomicInteger held = new AtomicInteger();
+	private final AtomicLong threadIds = new AtomicLong();
+
+	// counters for the task waits since the monitor last sampled them
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAdder started = new LongAdder();
+
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder grown = new LongAdder();
+	private final LongAdder shrunk = new LongAdder();
+	private final LongAdder yielded = new LongAdder();
+	private final LongAdder yieldedNanos = new LongAdder();
+	private volatile long lastWaitMicros = 0;
+
+	private volatile boolean shutdown = false;
 
 	/*
-	 * Creates a new WorkerThreadPool with a specified number of threads
-	 * 
+	 * Creates a new WorkerThreadPool with a fixed number of threads
+	 *
 	 * @param nThreads int number of threads to create in the pool
 	 */
 	public WorkerThreadPool(int nThreads) {
-		queue = new LinkedBlockingQueue<Runnable>();
-		threads = new WorkerThread[nThreads];
+		this("worker", nThreads, nThreads);
+	}
 
-		for (int i = 0; i < nThreads; i++) {
-			WorkerThread thread = new WorkerThread();
-			threads[i] = thread;
-			thread.start();
+	/*
+	 * Creates a new WorkerThreadPool which adapts its number of threads
+	 *
+	 * @param name String used to name the pool's threads
+	 *
+	 * @param minThreads int number of threads to keep when idle
+	 *
+	 * @param maxThreads int number of threads allowed when busy
+	 */
+	public WorkerThreadPool(String name, int minThreads, int maxThreads) {
+		this(name, minThreads, maxThreads, 0);
+	}
+
+	/*
+	 * Creates a new WorkerThreadPool which adapts its number of threads and
+	 * expires tasks that have waited longer than deadlineMillis to start
+	 *
+	 * @param name String used to name the pool's threads
+	 *
+	 * @param minThreads int number of threads to keep when idle
+	 *
+	 * @param maxThreads int number of threads allowed when busy
+	 *
+	 * @param deadlineMillis long milliseconds an Expirable task may wait
+	 * before it is expired (0 for no deadline)
+	 */
+	public WorkerThreadPool(String name, int minThreads, int maxThreads,
+		long deadlineMillis) {
+		this(name, minThreads, maxThreads, deadlineMillis, null, 0);
+	}
+
+	/*
+	 * Creates a new WorkerThreadPool which yields to another pool: each task
+	 * is held back while yieldTo has tasks waiting to start, for up to
+	 * yieldMillis
+	 *
+	 * @param name String used to name the pool's threads
+	 *
+	 * @param minThreads int number of threads to keep when idle
+	 *
+	 * @param maxThreads int number of threads allowed when busy
+	 *
+	 * @param deadlineMillis long milliseconds an Expirable task may wait
+	 * before it is expired (0 for no deadline)
+	 *
+	 * @param yieldTo WorkerThreadPool whose tasks go first, or null
+	 *
+	 * @param yieldMillis long milliseconds a task may be held back at most
+	 */
+	public WorkerThreadPool(String name, int minThreads, int maxThreads,
+		long deadlineMillis, WorkerThreadPool yieldTo, long yieldMillis) {
+		this.name = name;
+		this.yieldTo = yieldTo;
+		this.yieldNanos = TimeUnit.MILLISECONDS.toNanos(yieldMillis);
+		this.minThreads = Math.max(1, minThreads);
+		this.maxThreads = Math.max(this.minThreads, maxThreads);
+		this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+
+		for (int i = 0; i < this.minThreads; i++) {
+			startThread();
+		}
+
+		if (this.maxThreads > this.minThreads) {
+			Thread monitor = new Thread(this::monitor, name + "-monitor");
+			monitor.setDaemon(true);
+			monitor.start();
 		}
 	}
 
 	/*
-	 * Adds a Runnable to the WorkerThreadPool's queue
-	 * 
+	 * Adds a Runnable to the WorkerThreadPool's queue, returning false if the
+	 * pool has been shut down
+	 *
 	 * @param runner Runnable to add to queue
 	 */
-	public synchronized void add(Runnable runner) {
-		queue.add(runner);
+	public boolean add(Runnable runner) {
+		if (shutdown) {
+			return false;
+		}
+
+		pending.incrementAndGet();
+		enqueue(new Task(runner));
+
+		return true;
 	}
 
 	/*
-	 * Internal class used to run tasks in queue
-	 * 
-	 * @param runner Runnable to add to queue
+	 * Stops the pool from accepting tasks. Tasks already queued are still
+	 * run, after which the threads exit.
 	 */
-	private class WorkerThread extends Thread {
-		@Override
-		public void run() {
-			while (true) {
-				try {
-					// take causes thread to wait until queue has an element
-					queue.take().run();
-				} catch (InterruptedException e) {
-					if (e.getMessage() != null) {
-						System.err
-							.println(this.getName() + ": " + e.getMessage());
-						e.printStackTrace();
-					}
-					break;
-				} catch (RuntimeException re) {
-					/* ignored */
-				}
+	public void shutdown() {
+		shutdown = true;
+		for (WorkerThread thread : threads) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/*
+	 * Waits for the threads of a shut down pool to exit, returning false if
+	 * they are still running after timeout
+	 *
+	 * @param timeout long milliseconds to wait for
+	 */
+	public boolean awaitTermination(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		for (WorkerThread thread : threads) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining > 0) {
+				thread.join(remaining);
+			}
+			if (thread.isAlive()) {
+				return false;
 			}
 		}
+
+		return true;
 	}
 
 	/*
 	 * Interrupts all threads in the pool. This should be used with caution
 	 */
-	public synchronized void interrupt() {
-		for (int i = 0; i < threads.length; i++) {
+	public void interrupt() {
+		for (WorkerThread thread : threads) {
 			try {
-				threads[i].interrupt();
+				thread.interrupt();
 			} catch (SecurityException se) {
 				se.printStackTrace();
 			}
 		}
 	}
+
+	/*
+	 * Returns the pool's size and counters as a JSONObject
+	 */
+	public JSONObject toJSON() {
+		return new JSONObject().put("threads", threads.length)
+			.put("min_threads", minThreads).put("max_threads", maxThreads)
+			.put("pending", pending.get()).put("held", held.get())
+			.put("completed", completed.sum())
+			.put("expired", expired.sum())
+			.put("wait_micros", lastWaitMicros).put("grown", grown.sum())
+			.put("shrunk", shrunk.sum()).put("yielded", yielded.sum())
+			.put("yielded_micros", yieldedNanos.sum() / 1000);
+	}
+
+	/*
+	 * Gets the number of tasks queued or held back but not yet started
+	 */
+	public int getWaiting() {
+		return pending.get() + held.get();
+	}
+
+	/*
+	 * Holds back the calling thread while the pool this one yields to has
+	 * tasks waiting to start, for up to yieldNanos
+	 */
+	private void yieldToOther() {
+		if (yieldTo == null || yieldTo.getWaiting() == 0) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		long waited;
+		held.incrementAndGet();
+		try {
+			do {
+				LockSupport.parkNanos(this, YIELD_CHECK_NANOS);
+				waited = System.nanoTime() - start;
+			} while (yieldTo.getWaiting() > 0 && waited < yieldNanos);
+		} finally {
+			held.decrementAndGet();
+		}
+
+		yielded.increment();
+		yieldedNanos.add(waited);
+	}
+
+	/*
+	 * Puts a task on the queue of an idle thread, waking it, or else on the
+	 * queue of the less loaded of two threads picked at random
+	 *
+	 * @param task Task to queue
+	 */
+	private void enqueue(Task task) {
+		while (true) {
+			WorkerThread sleeper = idle.poll();
+			WorkerThread thread = sleeper != null ? sleeper : lessLoaded();
+			thread.queued.incrementAndGet();
+			thread.queue.offerLast(task);
+
+			// a retiring thread may have already drained its queue
+			if (!thread.retired || !thread.queue.remove(task)) {
+				if (sleeper != null) {
+					LockSupport.unpark(sleeper);
+				}
+				return;
+			}
+			thread.queued.decrementAndGet();
+		}
+	}
+
+	/*
+	 * Picks two threads at random and returns the one with fewer tasks queued
+	 * or running, so that tasks are not queued behind a busy thread while
+	 * another has none
+	 */
+	private WorkerThread lessLoaded() {
+		WorkerThread[] current = threads;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		WorkerThread first = current[random.nextInt(current.length)];
+		WorkerThread second = current[random.nextInt(current.length)];
+
+		return second.load() < first.load() ? second : first;
+	}
+
+	private synchronized void startThread() {
+		WorkerThread thread = new WorkerThread(
+			name + "-" + threadIds.incrementAndGet());
+		WorkerThread[] expanded = Arrays.copyOf(threads, threads.length + 1);
+		expanded[expanded.length - 1] = thread;
+		threads = expanded;
+		thread.start();
+	}
+
+	/*
+	 * Retires thread if the pool can spare it, returning true if it did
+	 *
+	 * @param thread WorkerThread that has been idle
+	 */
+	private synchronized boolean retire(WorkerThread thread) {
+		if (threads.length <= minThreads) {
+			return false;
+		}
+
+		thread.retired = true;
+		List<WorkerThread> remaining = new ArrayList<WorkerThread>(
+			Arrays.asList(threads));
+		remaining.remove(thread);
+		threads = remaining.toArray(new WorkerThread[0]);
+		idle.remove(thread);
+
+		// hand back anything queued since the thread last looked
+		Task task;
+		while ((task = thread.poll()) != null) {
+			enqueue(task);
+		}
+
+		shrunk.increment();
+		Log.info(
+			"Pool shrunk",
+			"pool",
+			name,
+			"threads",
+			threads.length,
+			"reason",
+			"idle");
+
+		return true;
+	}
+
+	/*
+	 * Periodically samples how long tasks wait to start, adding a thread
+	 * while they wait too long and the pool is below its maximum size
+	 */
+	private void monitor() {
+		while (!shutdown) {
+			try {
+				Thread.sleep(MONITOR_INTERVAL);
+			} catch (InterruptedException ie) {
+				return;
+			}
+
+			long count = started.sumThenReset();
+			long nanos = waitNanos.sumThenReset();
+			long waitMicros = count == 0 ? 0 : nanos / count / 1000;
+			lastWaitMicros = waitMicros;
+
+			// tasks that have not started yet are waiting too
+			boolean backlog = pending.get() > threads.length;
+			if ((waitMicros > GROW_WAIT_MILLIS * 1000 || backlog)
+				&& threads.length < maxThreads && !shutdown) {
+				startThread();
+				grown.increment();
+				Log.info(
+					"Pool grown",
+					"pool",
+					name,
+					"threads",
+					threads.length,
+					"wait_micros",
+					waitMicros,
+					"pending",
+					pending.get());
+			}
+		}
+	}
+
+	/*
+	 * Interface for tasks that can be abandoned once they have waited past
+	 * the pool's deadline
+	 */
+	public interface Expirable extends Runnable {
+		/*
+		 * Called instead of run when the task waited too long to start
+		 */
+		public void expire();
+	}
+
+	/*
+	 * Internal class for a queued Runnable, remembering when it was queued
+	 */
+	private static class Task {
+		private final Runnable runner;
+		private final long queued = System.nanoTime();
+
+		private Task(Runnable runner) {
+			this.runner = runner;
+		}
+	}
+
+	/*
+	 * Internal class used to run tasks in queue
+	 */
+	private class WorkerThread extends Thread {
+		private final ConcurrentLinkedDeque<Task> queue = new ConcurrentLinkedDeque<Task>();
+		// the queue's length, as ConcurrentLinkedDeque.size walks the queue
+		private final AtomicInteger queued = new AtomicInteger();
+		private volatile boolean running = false;
+		private volatile boolean retired = false;
+
+		private WorkerThread(String name) {
+			super(name);
+		}
+
+		@Override
+		public void run() {
+			long idleSince = System.nanoTime();
+
+			while (!isInterrupted()) {
+				Task task = next();
+				if (task != null) {
+					pending.decrementAndGet();
+					yieldToOther();
+					long waited = System.nanoTime() - task.queued;
+					waitNanos.add(waited);
+					started.increment();
+					running = true;
+					try {
+						if (deadlineNanos > 0 && waited > deadlineNanos
+							&& task.runner instanceof Expirable) {
+							expired.increment();
+							((Expirable) task.runner).expire();
+						} else {
+							task.runner.run();
+							completed.increment();
+						}
+					} catch (RuntimeException re) {
+						/* ignored */
+					} finally {
+						running = false;
+					}
+					idleSince = System.nanoTime();
+				} else if (shutdown && pending.get() == 0) {
+					break;
+				} else if (System.nanoTime() - idleSince > TimeUnit.MILLISECONDS
+					.toNanos(KEEP_ALIVE_MILLIS) && !shutdown && retire(this)) {
+					break;
+				} else {
+					idle.add(this);
+					// a task may have been queued before this thread was idle
+					if (pending.get() == 0) {
+						LockSupport.parkNanos(
+							this,
+							TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_MILLIS));
+					}
+					idle.remove(this);
+				}
+			}
+		}
+
+		/*
+		 * Takes the oldest task from this thread's queue, or else steals the
+		 * oldest task from another thread's queue, so that the tasks that
+		 * have waited longest start first
+		 */
+		private Task next() {
+			Task task = poll();
+			if (task != null) {
+				return task;
+			}
+
+			WorkerThread[] current = threads;
+			int start = ThreadLocalRandom.current().nextInt(current.length);
+			for (int i = 0; i < current.length; i++) {
+				WorkerThread victim = current[(start + i) % current.length];
+				if (victim != this && (task = victim.poll()) != null) {
+					return task;
+				}
+			}
+
+			return null;
+		}
+
+		/*
+		 * Takes the oldest task from this thread's queue, returning null if it
+		 * is empty
+		 */
+		private Task poll() {
+			Task task = queue.pollFirst();
+			if (task != null) {
+				queued.decrementAndGet();
+			}
+
+			return task;
+		}
+
+		/*
+		 * Gets the number of tasks queued on or running in this thread
+		 */
+		private int load() {
+			return queued.get() + (running ? 1 : 0);
+		}
+	}
 }